@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures dispatching a batch of presence updates, one per configured presence, to the presence registrations.
+ * Changed batches alternate the disabled state of all users, unchanged batches are suppressed by the registrations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    @Param({"1", "100", "10000"})
+    private int presences;
+
+    @Param({"true", "false"})
+    private boolean changed;
+
+    private final List<UserPresenter> presenters = new ArrayList<>();
+
+    private UserPresenceObserver observer;
+
+    private List<PresenceUpdate> enabled;
+
+    private List<PresenceUpdate> disabled;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("updateQueueCapacity", presences);
+        // keep resolving registered presenters from running against the missing repository
+        configuration.put("coalescingQuietWindow", TimeUnit.DAYS.toMillis(1));
+        configuration.put("coalescingMaxDelay", TimeUnit.DAYS.toMillis(1));
+        observer = PresenceBenchmarkSupport.observer(configuration);
+        enabled = new ArrayList<>(presences);
+        disabled = new ArrayList<>(presences);
+        for (int index = 0; index < presences; index++) {
+            final String userId = PresenceBenchmarkSupport.userId(index);
+            final String path = PresenceBenchmarkSupport.userPath(index);
+            presenters.add(PresenceBenchmarkSupport.userPresenter(observer, userId));
+            enabled.add(PresenceUpdate.present(new UserInfo(userId, path, false, true), 0));
+            disabled.add(PresenceUpdate.present(new UserInfo(userId, path, true, true), 0));
+        }
+        observer.dispatch(enabled);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (final UserPresenter presenter : presenters) {
+            presenter.deactivate();
+        }
+        presenters.clear();
+        observer.deactivate();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void dispatchBatch() {
+        observer.dispatch(changed ? disabled : enabled);
+        observer.dispatch(enabled);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures observing a commit on the repository observation thread: diffing the users tree, matching changed
+ * authorizables against presenters and queueing presence updates. Every invocation observes a commit and its revert.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ObservationBenchmark {
+
+    @Param({"1", "100", "10000", "100000"})
+    private int touchedUsers;
+
+    @Param({"1", "100", "10000"})
+    private int presences;
+
+    @Param({"disable", "tokens"})
+    private String change;
+
+    private final CommitInfo commitInfo = new CommitInfo("benchmark", null);
+
+    private final List<UserPresenter> presenters = new ArrayList<>();
+
+    private UserPresenceObserver observer;
+
+    private NodeState base;
+
+    private NodeState changed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        base = PresenceBenchmarkSupport.usersTree(Math.max(touchedUsers, presences));
+        changed = "tokens".equals(change) ? PresenceBenchmarkSupport.addLoginTokens(base, touchedUsers, 1) : PresenceBenchmarkSupport.disableUsers(base, touchedUsers);
+        final Map<String, Object> configuration = new HashMap<>();
+        configuration.put("includedPaths", new String[]{PresenceBenchmarkSupport.USERS_PATH});
+        configuration.put("updateQueueCapacity", presences);
+        // keep updates queued, merging them per user, to measure observation only
+        configuration.put("coalescingQuietWindow", TimeUnit.DAYS.toMillis(1));
+        configuration.put("coalescingMaxDelay", TimeUnit.DAYS.toMillis(1));
+        // walk large commits instead of resyncing against the missing repository
+        configuration.put("overflowDiffBudget", 0L);
+        observer = PresenceBenchmarkSupport.observer(configuration);
+        for (int index = 0; index < presences; index++) {
+            presenters.add(PresenceBenchmarkSupport.userPresenter(observer, PresenceBenchmarkSupport.userId(index)));
+        }
+        observer.contentChanged(base, CommitInfo.EMPTY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (final UserPresenter presenter : presenters) {
+            presenter.deactivate();
+        }
+        presenters.clear();
+        observer.deactivate();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void observeCommit() {
+        observer.contentChanged(changed, commitInfo);
+        observer.contentChanged(base, commitInfo);
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.NT_REP_AUTHORIZABLE_FOLDER;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.NT_REP_SYSTEM_USER;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_AUTHORIZABLE_ID;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_DISABLED;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_PRINCIPAL_NAME;
+
+/**
+ * Builds in-memory users trees, commits and presence components without an OSGi framework or repository.
+ */
+final class PresenceBenchmarkSupport {
+
+    static final String USERS_PATH = "/home/users/system/benchmark";
+
+    private static final int USERS_PER_FOLDER = 1000;
+
+    private PresenceBenchmarkSupport() {
+    }
+
+    @NotNull
+    static String userId(final int index) {
+        return "benchmark-user-" + index;
+    }
+
+    @NotNull
+    static String userPath(final int index) {
+        return USERS_PATH + "/" + folderName(index) + "/" + userId(index);
+    }
+
+    @NotNull
+    static NodeState usersTree(final int users) {
+        final NodeBuilder root = EMPTY_NODE.builder();
+        NodeBuilder builder = root;
+        for (final String name : USERS_PATH.substring(1).split("/")) {
+            builder = builder.child(name);
+            builder.setProperty(JCR_PRIMARYTYPE, NT_REP_AUTHORIZABLE_FOLDER, Type.NAME);
+        }
+        for (int index = 0; index < users; index++) {
+            final NodeBuilder folder = builder.child(folderName(index));
+            folder.setProperty(JCR_PRIMARYTYPE, NT_REP_AUTHORIZABLE_FOLDER, Type.NAME);
+            final NodeBuilder user = folder.child(userId(index));
+            user.setProperty(JCR_PRIMARYTYPE, NT_REP_SYSTEM_USER, Type.NAME);
+            user.setProperty(REP_AUTHORIZABLE_ID, userId(index));
+            user.setProperty(REP_PRINCIPAL_NAME, userId(index));
+        }
+        return root.getNodeState();
+    }
+
+    /**
+     * Disables the first {@code users} users, a change every presence of these users is published for.
+     */
+    @NotNull
+    static NodeState disableUsers(@NotNull final NodeState base, final int users) {
+        final NodeBuilder root = base.builder();
+        for (int index = 0; index < users; index++) {
+            user(root, index).setProperty(REP_DISABLED, "benchmark");
+        }
+        return root.getNodeState();
+    }
+
+    /**
+     * Adds a login token to the first {@code users} users, a change not affecting presence.
+     */
+    @NotNull
+    static NodeState addLoginTokens(@NotNull final NodeState base, final int users, final long generation) {
+        final NodeBuilder root = base.builder();
+        for (int index = 0; index < users; index++) {
+            final NodeBuilder token = user(root, index).child(".tokens").child("token-" + generation);
+            token.setProperty(JCR_PRIMARYTYPE, "rep:Token", Type.NAME);
+            token.setProperty("rep:token.key", "benchmark-" + generation);
+            token.setProperty("rep:token.exp", generation, Type.LONG);
+        }
+        return root.getNodeState();
+    }
+
+    @NotNull
+    static UserPresenceObserver observer(@NotNull final Map<String, Object> configuration) throws ReflectiveOperationException {
+        final UserPresenceObserver observer = new UserPresenceObserver();
+        final Field field = UserPresenceObserver.class.getDeclaredField("presenceRegistry");
+        field.setAccessible(true);
+        field.set(observer, new PresenceRegistry());
+        observer.activate(configuration(UserPresenceObserverConfiguration.class, configuration), bundleContext());
+        return observer;
+    }
+
+    @NotNull
+    static UserPresenter userPresenter(@NotNull final UserPresenceObserver observer, @NotNull final String userId) throws ReflectiveOperationException {
+        final UserPresenter presenter = new UserPresenter();
+        final Field field = UserPresenter.class.getDeclaredField("userPresenceObserver");
+        field.setAccessible(true);
+        field.set(presenter, observer);
+        presenter.activate(configuration(UserPresenterConfiguration.class, Collections.singletonMap("userId", userId)), bundleContext());
+        return presenter;
+    }
+
+    // returns the given values or the defaults of the configuration type
+    @NotNull
+    static <T> T configuration(@NotNull final Class<T> type, @NotNull final Map<String, Object> values) {
+        final Object configuration = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (values.containsKey(method.getName())) {
+                return values.get(method.getName());
+            }
+            return method.getDefaultValue();
+        });
+        return type.cast(configuration);
+    }
+
+    // a bundle context whose service registrations are not backed by a service registry
+    @NotNull
+    static BundleContext bundleContext() {
+        final ServiceRegistration<?> registration = (ServiceRegistration<?>) Proxy.newProxyInstance(ServiceRegistration.class.getClassLoader(), new Class<?>[]{ServiceRegistration.class}, (proxy, method, args) -> null);
+        return (BundleContext) Proxy.newProxyInstance(BundleContext.class.getClassLoader(), new Class<?>[]{BundleContext.class}, (proxy, method, args) -> {
+            if (method.getName().equals("registerService")) {
+                return registration;
+            }
+            return null;
+        });
+    }
+
+    @NotNull
+    private static NodeBuilder user(@NotNull final NodeBuilder root, final int index) {
+        NodeBuilder builder = root;
+        for (final String name : userPath(index).substring(1).split("/")) {
+            builder = builder.getChildNode(name);
+        }
+        return builder;
+    }
+
+    @NotNull
+    private static String folderName(final int index) {
+        return "folder-" + index / USERS_PER_FOLDER;
+    }
+
+}
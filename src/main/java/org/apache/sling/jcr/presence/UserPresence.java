@@ -27,4 +27,8 @@ public interface UserPresence {
     @NotNull
     String getUserId();
 
+    boolean isDisabled();
+
+    boolean isSystemUser();
+
 }
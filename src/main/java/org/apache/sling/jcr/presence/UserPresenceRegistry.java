@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Predicate;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Lookups of user presences against an immutable snapshot, without querying the OSGi service registry.
+ */
+@ProviderType
+public interface UserPresenceRegistry {
+
+    /**
+     * @return {@code true} if the user is present and not disabled
+     */
+    boolean isPresent(@NotNull String userId);
+
+    @Nullable
+    UserPresence get(@NotNull String userId);
+
+    /**
+     * @return an immutable snapshot of all user presences by user ID
+     */
+    @NotNull
+    Map<String, UserPresence> getPresences();
+
+    /**
+     * Awaits a presence of the user matching the given state, e.g. {@code presence -> !presence.isDisabled()}.
+     * <p>
+     * The returned stage completes when a matching presence is published, or immediately if the current presence
+     * matches. It completes exceptionally with a {@link java.util.concurrent.TimeoutException} when the timeout
+     * elapses first. Non-async dependent stages are executed on the thread publishing presences and must not block.
+     */
+    @NotNull
+    CompletionStage<UserPresence> awaitPresence(@NotNull String userId, @NotNull Predicate<UserPresence> state, @NotNull Duration timeout);
+
+}
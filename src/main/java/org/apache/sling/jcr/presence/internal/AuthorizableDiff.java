@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
+import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.MISSING_NODE;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_AUTHORIZABLE_ID;
+
+/**
+ * Walks a diff and reports changed authorizable nodes. The diff does not
+ * descend below authorizable nodes, as authorizables cannot be nested, so
+ * their login tokens, profiles and preferences are never walked. Hidden
+ * subtrees and excluded folders are pruned. The walk is aborted once a
+ * budget of visited nodes is exceeded.
+ */
+final class AuthorizableDiff implements NodeStateDiff {
+
+    interface Handler {
+
+        /**
+         * @param before the node before the change, {@code MISSING_NODE} if added
+         * @param after the node after the change, {@code MISSING_NODE} if deleted
+         */
+        void authorizableChanged(@NotNull String path, @NotNull NodeState before, @NotNull NodeState after);
+
+    }
+
+    private final String path;
+
+    private final Set<String> excludedNames;
+
+    private final Handler handler;
+
+    // remaining number of nodes to visit, shared by all diffs of a walk
+    private final long[] budget;
+
+    private AuthorizableDiff(@NotNull final String path, @NotNull final Set<String> excludedNames, @NotNull final Handler handler, @NotNull final long[] budget) {
+        this.path = path;
+        this.excludedNames = excludedNames;
+        this.handler = handler;
+        this.budget = budget;
+    }
+
+    static void compare(@NotNull final String path, @NotNull final NodeState before, @NotNull final NodeState after, @NotNull final Set<String> excludedNames, @NotNull final Handler handler) {
+        compare(path, before, after, excludedNames, handler, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param budget maximum number of nodes to visit
+     * @return the remaining budget, negative if the walk was aborted
+     */
+    static long compare(@NotNull final String path, @NotNull final NodeState before, @NotNull final NodeState after, @NotNull final Set<String> excludedNames, @NotNull final Handler handler, final long budget) {
+        final long[] remaining = {budget};
+        new AuthorizableDiff(PathUtils.getParentPath(path), excludedNames, handler, remaining).visit(PathUtils.getName(path), before, after);
+        return remaining[0];
+    }
+
+    static boolean isAuthorizable(@NotNull final NodeState node) {
+        return node.exists() && (node.hasProperty(REP_AUTHORIZABLE_ID) || isAuthorizableType(node.getName(JCR_PRIMARYTYPE)));
+    }
+
+    static boolean isAuthorizableType(@Nullable final String primaryType) {
+        return UserConstants.NT_REP_USER.equals(primaryType) || UserConstants.NT_REP_SYSTEM_USER.equals(primaryType) || UserConstants.NT_REP_GROUP.equals(primaryType);
+    }
+
+    @Override
+    public boolean propertyAdded(final PropertyState after) {
+        return true;
+    }
+
+    @Override
+    public boolean propertyChanged(final PropertyState before, final PropertyState after) {
+        return true;
+    }
+
+    @Override
+    public boolean propertyDeleted(final PropertyState before) {
+        return true;
+    }
+
+    @Override
+    public boolean childNodeAdded(final String name, final NodeState after) {
+        return visit(name, MISSING_NODE, after);
+    }
+
+    @Override
+    public boolean childNodeChanged(final String name, final NodeState before, final NodeState after) {
+        return visit(name, before, after);
+    }
+
+    @Override
+    public boolean childNodeDeleted(final String name, final NodeState before) {
+        return visit(name, before, MISSING_NODE);
+    }
+
+    private boolean visit(@NotNull final String name, @NotNull final NodeState before, @NotNull final NodeState after) {
+        if (NodeStateUtils.isHidden(name)) {
+            return true;
+        }
+        final boolean authorizable = isAuthorizable(before) || isAuthorizable(after);
+        // exclusions apply to folders only, an authorizable is reported whatever its name
+        if (!authorizable && excludedNames.contains(name)) {
+            return true;
+        }
+        if (--budget[0] < 0) {
+            return false;
+        }
+        final String childPath = PathUtils.concat(path, name);
+        if (authorizable) {
+            handler.authorizableChanged(childPath, before, after);
+            return true;
+        }
+        final AuthorizableDiff diff = new AuthorizableDiff(childPath, excludedNames, handler, budget);
+        if (!after.exists()) {
+            return EMPTY_NODE.compareAgainstBaseState(before, diff);
+        } else if (!before.exists()) {
+            return EmptyNodeState.compareAgainstEmptyState(after, diff);
+        } else {
+            return after.compareAgainstBaseState(before, diff);
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Presents all users which are listed by ID, whose ID matches a pattern or
+ * which are located below a path.
+ */
+@Component(
+    immediate = true,
+    configurationPolicy = ConfigurationPolicy.REQUIRE
+)
+@Designate(
+    ocd = BulkUserPresenterConfiguration.class,
+    factory = true
+)
+public class BulkUserPresenter implements Presenter {
+
+    private Set<String> userIds;
+
+    private List<Pattern> patterns;
+
+    private List<String> paths;
+
+    private volatile BundleContext bundleContext;
+
+    private final Map<String, PresenceRegistration> presenceRegistrations = new ConcurrentHashMap<>();
+
+    @Reference
+    private volatile UserPresenceObserver userPresenceObserver;
+
+    private final Logger logger = LoggerFactory.getLogger(BulkUserPresenter.class);
+
+    @Activate
+    public void activate(final BulkUserPresenterConfiguration configuration, final BundleContext bundleContext) {
+        userIds = Arrays.stream(configuration.userIds()).collect(Collectors.toSet());
+        patterns = new ArrayList<>();
+        for (final String pattern : configuration.userIdPatterns()) {
+            patterns.add(Pattern.compile(globToRegex(pattern)));
+        }
+        for (final String regexp : configuration.userIdRegexps()) {
+            patterns.add(Pattern.compile(regexp));
+        }
+        paths = Arrays.stream(configuration.paths()).map(path -> path.endsWith("/") ? path : path + "/").collect(Collectors.toList());
+        this.bundleContext = bundleContext;
+        logger.info("activating bulk user presenter for user IDs {}, patterns {} and paths {}", userIds, patterns, paths);
+        userPresenceObserver.register(this);
+    }
+
+    @Deactivate
+    public void deactivate() {
+        logger.info("deactivating bulk user presenter for user IDs {}, patterns {} and paths {}", userIds, patterns, paths);
+        userPresenceObserver.unregister(this);
+        bundleContext = null;
+        presenceRegistrations.values().forEach(PresenceRegistration::close);
+        userPresenceObserver.getRegistry().flush();
+    }
+
+    @NotNull
+    @Override
+    public Collection<String> getUserIds() {
+        return userIds;
+    }
+
+    @Override
+    public boolean hasPatterns() {
+        return !patterns.isEmpty() || !paths.isEmpty();
+    }
+
+    @Nullable
+    @Override
+    public Collection<String> getSelectedUserIds() {
+        return hasPatterns() ? null : userIds;
+    }
+
+    @Override
+    public boolean selects(@NotNull final String userId, @NotNull final String path) {
+        if (userIds.contains(userId)) {
+            return true;
+        }
+        for (final Pattern pattern : patterns) {
+            if (pattern.matcher(userId).matches()) {
+                return true;
+            }
+        }
+        for (final String prefix : paths) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean update(@NotNull final String userId, @Nullable final UserInfo userInfo) {
+        if (Objects.nonNull(userInfo) && selects(userId, userInfo.path)) {
+            final BundleContext bundleContext = this.bundleContext;
+            if (Objects.isNull(bundleContext)) {
+                return false;
+            }
+            final PresenceRegistration presenceRegistration = presenceRegistrations.computeIfAbsent(userId, key -> new PresenceRegistration(bundleContext, key, userPresenceObserver.getRegistry(), userPresenceObserver.getMetrics()));
+            final boolean published = presenceRegistration.update(userInfo);
+            if (Objects.isNull(this.bundleContext) || presenceRegistrations.get(userId) != presenceRegistration) {
+                // deactivated or removed concurrently, a removed registration is never closed otherwise
+                presenceRegistration.close();
+            }
+            return published;
+        } else {
+            final PresenceRegistration presenceRegistration = presenceRegistrations.remove(userId);
+            return Objects.nonNull(presenceRegistration) && presenceRegistration.update(null);
+        }
+    }
+
+    static String globToRegex(@NotNull final String glob) {
+        final StringBuilder regex = new StringBuilder();
+        final StringBuilder literal = new StringBuilder();
+        for (final char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
+}
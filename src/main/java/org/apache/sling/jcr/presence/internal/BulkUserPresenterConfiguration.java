@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(
+    name = "Apache Sling JCR Presence “Bulk User Presenter”",
+    description = "Registers an user presence (OSGi service) for each JCR user selected by ID, ID pattern or path."
+)
+@interface BulkUserPresenterConfiguration {
+
+    @AttributeDefinition(
+        name = "user IDs",
+        description = "IDs (rep:authorizableId) of presented users."
+    )
+    String[] userIds() default {};
+
+    @AttributeDefinition(
+        name = "user ID patterns",
+        description = "Glob patterns for IDs of presented users, * matches any sequence of characters and ? matches a single character, e.g. sling-*."
+    )
+    String[] userIdPatterns() default {};
+
+    @AttributeDefinition(
+        name = "user ID regular expressions",
+        description = "Regular expressions for IDs of presented users."
+    )
+    String[] userIdRegexps() default {};
+
+    @AttributeDefinition(
+        name = "paths",
+        description = "Paths of presented users, all users located below one of the paths are presented, e.g. /home/users/system."
+    )
+    String[] paths() default {};
+
+    String webconsole_configurationFactory_nameHint() default "{userIds} {userIdPatterns} {userIdRegexps} {paths}";
+
+}
@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.JcrConstants.JCR_UUID;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.NT_REP_GROUP;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_AUTHORIZABLE_ID;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_MEMBERS;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_MEMBERS_LIST;
+
+/**
+ * Declared and effective (transitive) members of groups, maintained from
+ * observed group node states.
+ * <p>
+ * Declared members of all groups are kept by content ID (jcr:uuid) and
+ * updated from the diff of {@code rep:members} properties, including those in
+ * the {@code rep:membersList} subtree. The effective members of the configured
+ * groups are updated incrementally when members are added, and recomputed from
+ * the declared members of the nested groups when members are removed. Changes
+ * are recorded by {@link #groupChanged} and applied by {@link #commit()} on the
+ * observation thread, {@link #memberOf} can be called from any thread.
+ */
+final class GroupMembershipCache {
+
+    private static final class Group {
+
+        final String path;
+
+        final String groupId;
+
+        final Set<String> members;
+
+        Group(@NotNull final String path, @NotNull final String groupId, @NotNull final Set<String> members) {
+            this.path = path;
+            this.groupId = groupId;
+            this.members = members;
+        }
+
+    }
+
+    private final Set<String> groupIds;
+
+    // groups by content ID
+    private final Map<String, Group> groups = new HashMap<>();
+
+    // content IDs of configured groups by ID
+    private final Map<String, String> contentIds = new HashMap<>();
+
+    // content IDs of groups and members added since the last commit, by group content ID
+    private final Map<String, Set<String>> added = new HashMap<>();
+
+    // content IDs of groups with removed members or which were added or removed since the last commit
+    private final Set<String> restructured = new HashSet<>();
+
+    // effective members of configured groups by group ID, replaced on commit
+    private volatile Map<String, Set<String>> effectiveMembers = Collections.emptyMap();
+
+    GroupMembershipCache(@NotNull final Collection<String> groupIds) {
+        this.groupIds = Collections.unmodifiableSet(new TreeSet<>(groupIds));
+    }
+
+    /**
+     * @param contentId content ID (jcr:uuid) of the user
+     * @return IDs of the configured groups the user is an effective member of
+     */
+    @NotNull
+    Set<String> memberOf(@NotNull final String contentId) {
+        final Set<String> memberOf = new TreeSet<>();
+        effectiveMembers.forEach((groupId, members) -> {
+            if (members.contains(contentId)) {
+                memberOf.add(groupId);
+            }
+        });
+        return memberOf;
+    }
+
+    void groupChanged(@NotNull final String path, @NotNull final NodeState before, @NotNull final NodeState after) {
+        final boolean wasGroup = isGroup(before);
+        final boolean isGroup = isGroup(after);
+        final String beforeContentId = before.getString(JCR_UUID);
+        final String afterContentId = after.getString(JCR_UUID);
+        if (wasGroup && Objects.nonNull(beforeContentId) && (!isGroup || !beforeContentId.equals(afterContentId))) {
+            final Group group = groups.get(beforeContentId);
+            // a group moved within the same commit may have been added at its new path already
+            if (Objects.nonNull(group) && group.path.equals(path)) {
+                groups.remove(beforeContentId);
+                contentIds.values().remove(beforeContentId);
+                restructured.add(beforeContentId);
+            }
+        }
+        if (!isGroup || Objects.isNull(afterContentId)) {
+            return;
+        }
+        final Group group = groups.get(afterContentId);
+        if (Objects.isNull(group) || !afterContentId.equals(beforeContentId)) {
+            final Group addedGroup = new Group(path, after.getString(REP_AUTHORIZABLE_ID), declaredMembers(after));
+            groups.put(afterContentId, addedGroup);
+            if (groupIds.contains(addedGroup.groupId)) {
+                contentIds.put(addedGroup.groupId, afterContentId);
+            }
+            restructured.add(afterContentId);
+        } else {
+            final Set<String> addedMembers = new HashSet<>();
+            final Set<String> removedMembers = new HashSet<>();
+            diffMembers(before, after, addedMembers, removedMembers);
+            // members moved between nodes of the members list are not changed
+            final Set<String> moved = new HashSet<>(addedMembers);
+            moved.retainAll(removedMembers);
+            addedMembers.removeAll(moved);
+            removedMembers.removeAll(moved);
+            group.members.addAll(addedMembers);
+            group.members.removeAll(removedMembers);
+            if (!removedMembers.isEmpty()) {
+                restructured.add(afterContentId);
+            }
+            if (!addedMembers.isEmpty()) {
+                added.computeIfAbsent(afterContentId, key -> new HashSet<>()).addAll(addedMembers);
+            }
+        }
+    }
+
+    /**
+     * Applies the recorded changes to the effective members of the configured groups.
+     *
+     * @return content IDs of authorizables whose effective membership changed
+     */
+    @NotNull
+    Set<String> commit() {
+        if (added.isEmpty() && restructured.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final Set<String> changed = new HashSet<>();
+        final Map<String, Set<String>> next = new HashMap<>();
+        for (final String groupId : groupIds) {
+            final Set<String> previous = effectiveMembers.getOrDefault(groupId, Collections.emptySet());
+            final String contentId = contentIds.get(groupId);
+            final Set<String> members;
+            if (Objects.isNull(contentId)) {
+                members = Collections.emptySet();
+            } else if (affects(contentId, previous, restructured)) {
+                members = closure(contentId);
+            } else if (affects(contentId, previous, added.keySet())) {
+                members = new HashSet<>(previous);
+                for (final Map.Entry<String, Set<String>> entry : added.entrySet()) {
+                    if (entry.getKey().equals(contentId) || previous.contains(entry.getKey())) {
+                        for (final String member : entry.getValue()) {
+                            addClosure(member, members);
+                        }
+                    }
+                }
+            } else {
+                members = previous;
+            }
+            if (members != previous) {
+                symmetricDifference(previous, members, changed);
+            }
+            next.put(groupId, Collections.unmodifiableSet(members));
+        }
+        added.clear();
+        restructured.clear();
+        effectiveMembers = Collections.unmodifiableMap(next);
+        return changed;
+    }
+
+    /**
+     * Oak derives the content ID (jcr:uuid) of an authorizable from its lower-cased ID. Only used if the node of
+     * the authorizable is not available.
+     */
+    @NotNull
+    static String contentId(@NotNull final String authorizableId) {
+        return UUID.nameUUIDFromBytes(authorizableId.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    static boolean isGroup(@NotNull final NodeState node) {
+        return node.exists() && NT_REP_GROUP.equals(node.getName(JCR_PRIMARYTYPE));
+    }
+
+    private static boolean affects(@NotNull final String contentId, @NotNull final Set<String> members, @NotNull final Set<String> changedGroups) {
+        for (final String changedGroup : changedGroups) {
+            if (changedGroup.equals(contentId) || members.contains(changedGroup)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    private Set<String> closure(@NotNull final String contentId) {
+        final Set<String> members = new HashSet<>();
+        final Group group = groups.get(contentId);
+        if (Objects.nonNull(group)) {
+            for (final String member : group.members) {
+                addClosure(member, members);
+            }
+        }
+        return members;
+    }
+
+    // adds the member and, if it is a group, its effective members
+    private void addClosure(@NotNull final String member, @NotNull final Set<String> members) {
+        final Deque<String> pending = new ArrayDeque<>();
+        pending.push(member);
+        while (!pending.isEmpty()) {
+            final String contentId = pending.pop();
+            if (members.add(contentId)) {
+                final Group group = groups.get(contentId);
+                if (Objects.nonNull(group)) {
+                    group.members.forEach(pending::push);
+                }
+            }
+        }
+    }
+
+    private static void symmetricDifference(@NotNull final Set<String> before, @NotNull final Set<String> after, @NotNull final Set<String> difference) {
+        for (final String member : before) {
+            if (!after.contains(member)) {
+                difference.add(member);
+            }
+        }
+        for (final String member : after) {
+            if (!before.contains(member)) {
+                difference.add(member);
+            }
+        }
+    }
+
+    @NotNull
+    private static Set<String> declaredMembers(@NotNull final NodeState group) {
+        final Set<String> members = new HashSet<>();
+        addValues(group.getProperty(REP_MEMBERS), members);
+        for (final ChildNodeEntry entry : group.getChildNode(REP_MEMBERS_LIST).getChildNodeEntries()) {
+            addValues(entry.getNodeState().getProperty(REP_MEMBERS), members);
+        }
+        return members;
+    }
+
+    private static void diffMembers(@NotNull final NodeState before, @NotNull final NodeState after, @NotNull final Set<String> added, @NotNull final Set<String> removed) {
+        diffValues(before.getProperty(REP_MEMBERS), after.getProperty(REP_MEMBERS), added, removed);
+        final NodeState beforeList = before.getChildNode(REP_MEMBERS_LIST);
+        final NodeState afterList = after.getChildNode(REP_MEMBERS_LIST);
+        afterList.compareAgainstBaseState(beforeList, new DefaultNodeStateDiff() {
+
+            @Override
+            public boolean childNodeAdded(final String name, final NodeState after) {
+                addValues(after.getProperty(REP_MEMBERS), added);
+                return true;
+            }
+
+            @Override
+            public boolean childNodeChanged(final String name, final NodeState before, final NodeState after) {
+                diffValues(before.getProperty(REP_MEMBERS), after.getProperty(REP_MEMBERS), added, removed);
+                return true;
+            }
+
+            @Override
+            public boolean childNodeDeleted(final String name, final NodeState before) {
+                addValues(before.getProperty(REP_MEMBERS), removed);
+                return true;
+            }
+
+        });
+    }
+
+    private static void diffValues(@Nullable final PropertyState before, @Nullable final PropertyState after, @NotNull final Set<String> added, @NotNull final Set<String> removed) {
+        final Set<String> beforeValues = new HashSet<>();
+        addValues(before, beforeValues);
+        final Set<String> afterValues = new HashSet<>();
+        addValues(after, afterValues);
+        for (final String value : afterValues) {
+            if (!beforeValues.contains(value)) {
+                added.add(value);
+            }
+        }
+        for (final String value : beforeValues) {
+            if (!afterValues.contains(value)) {
+                removed.add(value);
+            }
+        }
+    }
+
+    private static void addValues(@Nullable final PropertyState property, @NotNull final Set<String> values) {
+        if (Objects.nonNull(property)) {
+            for (final String value : property.getValue(Type.STRINGS)) {
+                values.add(value);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets.
+ * Percentiles are reported as the upper bound of their bucket.
+ */
+final class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    void record(final long duration, final TimeUnit unit) {
+        final long micros = Math.max(0, unit.toMicros(duration));
+        final int bucket = Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        sum.add(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return mean in milliseconds
+     */
+    double getMean() {
+        final long count = this.count.sum();
+        return count == 0 ? 0 : sum.sum() / 1000.0 / count;
+    }
+
+    /**
+     * @return maximum in milliseconds
+     */
+    double getMax() {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * @param quantile quantile between 0 and 1
+     * @return upper bound of the quantile in milliseconds
+     */
+    double getPercentile(final double quantile) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, max.get()) / 1000.0;
+            }
+        }
+        return getMax();
+    }
+
+}
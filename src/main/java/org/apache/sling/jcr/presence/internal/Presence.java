@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import org.apache.sling.jcr.presence.UserPresence;
+import org.jetbrains.annotations.NotNull;
+
+final class Presence implements UserPresence {
+
+    private final UserInfo userInfo;
+
+    Presence(@NotNull final UserInfo userInfo) {
+        this.userInfo = userInfo;
+    }
+
+    @Override
+    @NotNull
+    public String getUserId() {
+        return userInfo.userId;
+    }
+
+    @Override
+    public boolean isDisabled() {
+        return userInfo.isDisabled;
+    }
+
+    @Override
+    public boolean isSystemUser() {
+        return userInfo.isSystemUser;
+    }
+
+    @Override
+    public boolean equals(final Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof Presence)) {
+            return false;
+        }
+        return userInfo.equals(((Presence) object).userInfo);
+    }
+
+    @Override
+    public int hashCode() {
+        return userInfo.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Presence[userId=%s, disabled=%s, systemUser=%s]", userInfo.userId, userInfo.isDisabled, userInfo.isSystemUser);
+    }
+
+}
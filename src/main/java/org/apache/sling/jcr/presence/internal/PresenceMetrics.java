@@ -0,0 +1,388 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.sling.commons.metrics.Counter;
+import org.apache.sling.commons.metrics.Meter;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.commons.metrics.Timer;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Metrics of the presence subsystem. Metrics are reported to Sling Metrics
+ * (if available) and kept locally for the {@link UserPresenceMetricsMBean}.
+ * Sling Metrics is looked up on every report, so it may come and go while
+ * the metrics are in use.
+ */
+final class PresenceMetrics implements UserPresenceMetricsMBean {
+
+    private static final String PREFIX = "sling.jcr.presence.";
+
+    private final Events commits;
+
+    private final Timing observations;
+
+    private final Events observedAuthorizables;
+
+    private final Events matchedAuthorizables;
+
+    private final Timing lookups;
+
+    private final Timing logins;
+
+    private final Events registered;
+
+    private final Events unregistered;
+
+    private final Events modified;
+
+    private final Events suppressed;
+
+    private final Timing publishedLatency;
+
+    private final LongAdder queueDepth = new LongAdder();
+
+    private final Metric<Counter> queueDepthCounter;
+
+    private final Events queueMerged;
+
+    private final Events queueBlocked;
+
+    private final Events queueDiscarded;
+
+    private final Events reconciliations;
+
+    private final Events overflows;
+
+    PresenceMetrics(@NotNull final Supplier<MetricsService> metricsService) {
+        commits = new Events(metricsService, PREFIX + "commits");
+        observations = new Timing(metricsService, PREFIX + "observations");
+        observedAuthorizables = new Events(metricsService, PREFIX + "authorizables.observed");
+        matchedAuthorizables = new Events(metricsService, PREFIX + "authorizables.matched");
+        lookups = new Timing(metricsService, PREFIX + "lookups");
+        logins = new Timing(metricsService, PREFIX + "logins");
+        registered = new Events(metricsService, PREFIX + "presences.registered");
+        unregistered = new Events(metricsService, PREFIX + "presences.unregistered");
+        modified = new Events(metricsService, PREFIX + "presences.modified");
+        suppressed = new Events(metricsService, PREFIX + "presences.suppressed");
+        publishedLatency = new Timing(metricsService, PREFIX + "presences.latency");
+        // a counter of a newly bound metrics service starts with the current depth
+        queueDepthCounter = new Metric<>(metricsService, service -> {
+            final Counter counter = service.counter(PREFIX + "queue.depth");
+            counter.increment(queueDepth.sum() - counter.getCount());
+            return counter;
+        });
+        queueMerged = new Events(metricsService, PREFIX + "queue.merged");
+        queueBlocked = new Events(metricsService, PREFIX + "queue.blocked");
+        queueDiscarded = new Events(metricsService, PREFIX + "queue.discarded");
+        reconciliations = new Events(metricsService, PREFIX + "reconciliations");
+        overflows = new Events(metricsService, PREFIX + "overflows");
+    }
+
+    void commitObserved() {
+        commits.mark();
+    }
+
+    /**
+     * @param nanos time spent on the observation thread for a commit
+     */
+    void observation(final long nanos) {
+        observations.update(nanos);
+    }
+
+    void authorizableObserved(final boolean matched) {
+        observedAuthorizables.mark();
+        if (matched) {
+            matchedAuthorizables.mark();
+        }
+    }
+
+    void lookup(final long nanos) {
+        lookups.update(nanos);
+    }
+
+    void login(final long nanos) {
+        logins.update(nanos);
+    }
+
+    void registered() {
+        registered.mark();
+    }
+
+    void unregistered() {
+        unregistered.mark();
+    }
+
+    void modified() {
+        modified.mark();
+    }
+
+    void suppressed() {
+        suppressed.mark();
+    }
+
+    /**
+     * @param commitDate date of the commit whose state was published, in milliseconds since the epoch
+     */
+    void published(final long commitDate) {
+        publishedLatency.update(TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - commitDate)));
+    }
+
+    void queued() {
+        queueDepth.increment();
+        queueDepthCounter.get().increment();
+    }
+
+    void dequeued(final int count) {
+        queueDepth.add(-count);
+        queueDepthCounter.get().decrement(count);
+    }
+
+    void queueMerged() {
+        queueMerged.mark();
+    }
+
+    void queueBlocked() {
+        queueBlocked.mark();
+    }
+
+    void queueDiscarded() {
+        queueDiscarded.mark();
+    }
+
+    void reconciled() {
+        reconciliations.mark();
+    }
+
+    void overflowed() {
+        overflows.mark();
+    }
+
+    @Override
+    public long getCommitCount() {
+        return commits.getCount();
+    }
+
+    @Override
+    public double getObservationTimeMean() {
+        return observations.histogram.getMean();
+    }
+
+    @Override
+    public double getObservationTime99thPercentile() {
+        return observations.histogram.getPercentile(0.99);
+    }
+
+    @Override
+    public double getObservationTimeMax() {
+        return observations.histogram.getMax();
+    }
+
+    @Override
+    public long getObservedAuthorizableCount() {
+        return observedAuthorizables.getCount();
+    }
+
+    @Override
+    public long getMatchedAuthorizableCount() {
+        return matchedAuthorizables.getCount();
+    }
+
+    @Override
+    public long getLookupCount() {
+        return lookups.histogram.getCount();
+    }
+
+    @Override
+    public double getLookupTimeMean() {
+        return lookups.histogram.getMean();
+    }
+
+    @Override
+    public double getLookupTime99thPercentile() {
+        return lookups.histogram.getPercentile(0.99);
+    }
+
+    @Override
+    public double getLookupTimeMax() {
+        return lookups.histogram.getMax();
+    }
+
+    @Override
+    public long getLoginCount() {
+        return logins.histogram.getCount();
+    }
+
+    @Override
+    public double getLoginTimeMean() {
+        return logins.histogram.getMean();
+    }
+
+    @Override
+    public double getLoginTimeMax() {
+        return logins.histogram.getMax();
+    }
+
+    @Override
+    public long getRegisteredCount() {
+        return registered.getCount();
+    }
+
+    @Override
+    public long getUnregisteredCount() {
+        return unregistered.getCount();
+    }
+
+    @Override
+    public long getModifiedCount() {
+        return modified.getCount();
+    }
+
+    @Override
+    public long getSuppressedCount() {
+        return suppressed.getCount();
+    }
+
+    @Override
+    public long getPublishedLatencyCount() {
+        return publishedLatency.histogram.getCount();
+    }
+
+    @Override
+    public double getPublishedLatencyMean() {
+        return publishedLatency.histogram.getMean();
+    }
+
+    @Override
+    public double getPublishedLatency50thPercentile() {
+        return publishedLatency.histogram.getPercentile(0.5);
+    }
+
+    @Override
+    public double getPublishedLatency99thPercentile() {
+        return publishedLatency.histogram.getPercentile(0.99);
+    }
+
+    @Override
+    public double getPublishedLatencyMax() {
+        return publishedLatency.histogram.getMax();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.sum();
+    }
+
+    @Override
+    public long getQueueMergedCount() {
+        return queueMerged.getCount();
+    }
+
+    @Override
+    public long getQueueBlockedCount() {
+        return queueBlocked.getCount();
+    }
+
+    @Override
+    public long getQueueDiscardedCount() {
+        return queueDiscarded.getCount();
+    }
+
+    @Override
+    public long getReconciliationCount() {
+        return reconciliations.getCount();
+    }
+
+    @Override
+    public long getOverflowCount() {
+        return overflows.getCount();
+    }
+
+    // a metric of the current metrics service, created again when the service changed
+    private static final class Metric<T> {
+
+        private final Supplier<MetricsService> metricsService;
+
+        private final Function<MetricsService, T> factory;
+
+        private volatile MetricsService bound;
+
+        private volatile T metric;
+
+        Metric(@NotNull final Supplier<MetricsService> metricsService, @NotNull final Function<MetricsService, T> factory) {
+            this.metricsService = metricsService;
+            this.factory = factory;
+        }
+
+        @NotNull
+        T get() {
+            final MetricsService current = metricsService.get();
+            if (current != bound) {
+                metric = factory.apply(current);
+                bound = current;
+            }
+            return metric;
+        }
+
+    }
+
+    private static final class Events {
+
+        private final LongAdder count = new LongAdder();
+
+        private final Metric<Meter> meter;
+
+        Events(@NotNull final Supplier<MetricsService> metricsService, @NotNull final String name) {
+            this.meter = new Metric<>(metricsService, service -> service.meter(name));
+        }
+
+        void mark() {
+            count.increment();
+            meter.get().mark();
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+    }
+
+    private static final class Timing {
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private final Metric<Timer> timer;
+
+        Timing(@NotNull final Supplier<MetricsService> metricsService, @NotNull final String name) {
+            this.timer = new Metric<>(metricsService, service -> service.timer(name));
+        }
+
+        void update(final long nanos) {
+            histogram.record(nanos, TimeUnit.NANOSECONDS);
+            timer.get().update(nanos, TimeUnit.NANOSECONDS);
+        }
+
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extra service properties of presences, read from properties of the user
+ * node given by relative path, or the intermediate path of the user.
+ * <p>
+ * Values are read the same way from observed node states and from resolved
+ * authorizables: single values as {@code String}, {@code Long},
+ * {@code Boolean} or {@code Double}, multiple values as list.
+ */
+final class PresenceProperties {
+
+    static final PresenceProperties NONE = new PresenceProperties(Collections.emptyMap());
+
+    static final String INTERMEDIATE_PATH = ":intermediatePath";
+
+    private static final List<String> RESERVED_NAMES = Arrays.asList("userId", "disabled", "systemUser", "memberOf");
+
+    // relative paths by service property name
+    private final Map<String, String> relPaths;
+
+    private static final Logger logger = LoggerFactory.getLogger(PresenceProperties.class);
+
+    private PresenceProperties(@NotNull final Map<String, String> relPaths) {
+        this.relPaths = relPaths;
+    }
+
+    /**
+     * @param definitions service property definitions {@code name=relPath}, e.g. {@code principalName=rep:principalName}
+     */
+    @NotNull
+    static PresenceProperties parse(@NotNull final String[] definitions) {
+        final Map<String, String> relPaths = new LinkedHashMap<>();
+        for (final String definition : definitions) {
+            final int separator = definition.indexOf('=');
+            final String name = separator > 0 ? definition.substring(0, separator).trim() : "";
+            final String relPath = separator > 0 ? definition.substring(separator + 1).trim() : "";
+            if (name.isEmpty() || relPath.isEmpty() || PathUtils.isAbsolute(relPath)) {
+                logger.warn("ignoring invalid service property definition {}", definition);
+            } else if (RESERVED_NAMES.contains(name)) {
+                logger.warn("ignoring service property definition {}, {} is reserved", definition, name);
+            } else {
+                relPaths.put(name, relPath);
+            }
+        }
+        return relPaths.isEmpty() ? NONE : new PresenceProperties(Collections.unmodifiableMap(relPaths));
+    }
+
+    boolean isEmpty() {
+        return relPaths.isEmpty();
+    }
+
+    @NotNull
+    Map<String, Object> read(@NotNull final NodeState node, @NotNull final String path) {
+        if (relPaths.isEmpty() || !node.exists()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Object> properties = new LinkedHashMap<>();
+        for (final Map.Entry<String, String> entry : relPaths.entrySet()) {
+            final String relPath = entry.getValue();
+            if (INTERMEDIATE_PATH.equals(relPath)) {
+                properties.put(entry.getKey(), intermediatePath(path));
+                continue;
+            }
+            NodeState parent = node;
+            for (final String name : PathUtils.elements(PathUtils.getParentPath(relPath))) {
+                parent = parent.getChildNode(name);
+            }
+            final Object value = value(parent.getProperty(PathUtils.getName(relPath)));
+            if (Objects.nonNull(value)) {
+                properties.put(entry.getKey(), value);
+            }
+        }
+        return properties;
+    }
+
+    @NotNull
+    Map<String, Object> read(@NotNull final Authorizable authorizable) throws RepositoryException {
+        if (relPaths.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Object> properties = new LinkedHashMap<>();
+        for (final Map.Entry<String, String> entry : relPaths.entrySet()) {
+            final String relPath = entry.getValue();
+            if (INTERMEDIATE_PATH.equals(relPath)) {
+                properties.put(entry.getKey(), intermediatePath(authorizable.getPath()));
+                continue;
+            }
+            final Object value = value(authorizable.getProperty(relPath));
+            if (Objects.nonNull(value)) {
+                properties.put(entry.getKey(), value);
+            }
+        }
+        return properties;
+    }
+
+    @Nullable
+    private static Object value(@Nullable final PropertyState property) {
+        if (Objects.isNull(property) || property.count() == 0) {
+            return null;
+        }
+        if (property.count() == 1) {
+            return value(property, 0);
+        }
+        final List<Object> values = new ArrayList<>(property.count());
+        for (int i = 0; i < property.count(); i++) {
+            values.add(value(property, i));
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    @NotNull
+    private static Object value(@NotNull final PropertyState property, final int index) {
+        switch (property.getType().tag()) {
+            case PropertyType.LONG:
+                return property.getValue(Type.LONG, index);
+            case PropertyType.BOOLEAN:
+                return property.getValue(Type.BOOLEAN, index);
+            case PropertyType.DOUBLE:
+                return property.getValue(Type.DOUBLE, index);
+            default:
+                return property.getValue(Type.STRING, index);
+        }
+    }
+
+    @Nullable
+    private static Object value(@Nullable final Value[] values) throws RepositoryException {
+        if (Objects.isNull(values) || values.length == 0) {
+            return null;
+        }
+        if (values.length == 1) {
+            return value(values[0]);
+        }
+        final List<Object> list = new ArrayList<>(values.length);
+        for (final Value value : values) {
+            list.add(value(value));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    @NotNull
+    private static Object value(@NotNull final Value value) throws RepositoryException {
+        switch (value.getType()) {
+            case PropertyType.LONG:
+                return value.getLong();
+            case PropertyType.BOOLEAN:
+                return value.getBoolean();
+            case PropertyType.DOUBLE:
+                return value.getDouble();
+            default:
+                return value.getString();
+        }
+    }
+
+    // path of the parent relative to the users root, e.g. system/sling for /home/users/system/sling/sling-readall
+    @NotNull
+    static String intermediatePath(@NotNull final String path) {
+        final String parentPath = PathUtils.getParentPath(path);
+        if (parentPath.equals(UserConstants.DEFAULT_USER_PATH)) {
+            return "";
+        } else if (PathUtils.isAncestor(UserConstants.DEFAULT_USER_PATH, parentPath)) {
+            return PathUtils.relativize(UserConstants.DEFAULT_USER_PATH, parentPath);
+        } else {
+            return parentPath;
+        }
+    }
+
+}
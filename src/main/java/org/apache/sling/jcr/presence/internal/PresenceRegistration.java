@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.sling.jcr.presence.UserPresence;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registration of a user presence, driven by a lock-free state machine.
+ * <p>
+ * A caller requests a transition and then tries to take ownership of the
+ * registration by moving it into {@link State#REGISTERING}. The owner applies
+ * the latest requested transition and any transition requested while it was
+ * busy, other callers return immediately. Once closed, a registration stays
+ * closed.
+ */
+final class PresenceRegistration {
+
+    enum State {
+        ABSENT,
+        REGISTERING,
+        PRESENT,
+        DISABLED,
+        CLOSED
+    }
+
+    private static final class Transition {
+
+        final UserInfo userInfo;
+
+        final boolean close;
+
+        Transition(@Nullable final UserInfo userInfo, final boolean close) {
+            this.userInfo = userInfo;
+            this.close = close;
+        }
+
+    }
+
+    private static final Transition CLOSE = new Transition(null, true);
+
+    private final BundleContext bundleContext;
+
+    private final String userId;
+
+    private final PresenceRegistry registry;
+
+    private final PresenceMetrics metrics;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.ABSENT);
+
+    private final AtomicReference<Transition> requested = new AtomicReference<>();
+
+    // only accessed by the owner of the registration
+    private ServiceRegistration<UserPresence> presenceRegistration;
+
+    private UserInfo publishedUserInfo;
+
+    private boolean serviceEventFired;
+
+    // state of the registered service, read by consumers
+    private volatile Presence presence;
+
+    private static final String USER_ID = "userId";
+
+    private static final String DISABLED = "disabled";
+
+    private static final String SYSTEM_USER = "systemUser";
+
+    private static final String MEMBER_OF = "memberOf";
+
+    private final Logger logger = LoggerFactory.getLogger(PresenceRegistration.class);
+
+    PresenceRegistration(@NotNull final BundleContext bundleContext, @NotNull final String userId, @NotNull final PresenceRegistry registry, @NotNull final PresenceMetrics metrics) {
+        this.bundleContext = bundleContext;
+        this.userId = userId;
+        this.registry = registry;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return {@code true} if the presence was registered, modified or unregistered
+     */
+    boolean update(@Nullable final UserInfo userInfo) {
+        final Transition transition = new Transition(userInfo, false);
+        // a requested close is never replaced
+        requested.getAndUpdate(current -> current == CLOSE ? CLOSE : transition);
+        return process();
+    }
+
+    void close() {
+        requested.set(CLOSE);
+        process();
+    }
+
+    @NotNull
+    State getState() {
+        return state.get();
+    }
+
+    private boolean process() {
+        boolean published = false;
+        while (Objects.nonNull(requested.get())) {
+            final State current = state.get();
+            if (current == State.CLOSED || current == State.REGISTERING) {
+                // closed for good or the current owner will process the requested transition
+                return published;
+            }
+            if (!state.compareAndSet(current, State.REGISTERING)) {
+                continue;
+            }
+            State next = current;
+            try {
+                final Transition transition = requested.getAndSet(null);
+                if (Objects.nonNull(transition)) {
+                    serviceEventFired = false;
+                    next = apply(current, transition);
+                    published |= serviceEventFired;
+                }
+            } finally {
+                state.set(next);
+            }
+        }
+        return published;
+    }
+
+    private State apply(@NotNull final State current, @NotNull final Transition transition) {
+        final UserInfo userInfo = transition.userInfo;
+        try {
+            if (transition.close) {
+                unregisterUserPresence();
+                return State.CLOSED;
+            } else if (Objects.isNull(userInfo)) {
+                unregisterUserPresence();
+                return State.ABSENT;
+            } else if (current == State.ABSENT) {
+                registerUserPresence(userInfo);
+                return state(userInfo);
+            } else if (userInfo.equals(publishedUserInfo)) {
+                logger.debug("user presence for {} unchanged", userId);
+                return current;
+            } else {
+                final Dictionary<String, Object> serviceProperties = serviceProperties(userInfo);
+                presence = new Presence(userInfo);
+                presenceRegistration.setProperties(serviceProperties);
+                publishedUserInfo = userInfo;
+                registry.update(this, userId, presence);
+                serviceEventFired = true;
+                metrics.modified();
+                return state(userInfo);
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            return transition.close ? State.CLOSED : Objects.isNull(presenceRegistration) ? State.ABSENT : current;
+        }
+    }
+
+    private static State state(@NotNull final UserInfo userInfo) {
+        return userInfo.isDisabled ? State.DISABLED : State.PRESENT;
+    }
+
+    private UserPresence userPresence() {
+        return new UserPresence() {
+
+            @Override
+            @NotNull
+            public String getUserId() {
+                return userId;
+            }
+
+            @Override
+            public boolean isDisabled() {
+                return presence.isDisabled();
+            }
+
+            @Override
+            public boolean isSystemUser() {
+                return presence.isSystemUser();
+            }
+
+        };
+    }
+
+    private void registerUserPresence(@NotNull final UserInfo userInfo) {
+        final Dictionary<String, Object> properties = serviceProperties(userInfo);
+        presence = new Presence(userInfo);
+        presenceRegistration = bundleContext.registerService(UserPresence.class, userPresence(), properties);
+        publishedUserInfo = userInfo;
+        registry.update(this, userId, presence);
+        serviceEventFired = true;
+        metrics.registered();
+        logger.info("user presence for {} registered", userId);
+    }
+
+    private void unregisterUserPresence() {
+        if (Objects.nonNull(presenceRegistration)) {
+            try {
+                presenceRegistration.unregister();
+            } finally {
+                presenceRegistration = null;
+                publishedUserInfo = null;
+                serviceEventFired = true;
+                registry.update(this, userId, null);
+            }
+            metrics.unregistered();
+            logger.info("user presence for {} unregistered", userId);
+        }
+    }
+
+    private Dictionary<String, Object> serviceProperties(@NotNull final UserInfo userInfo) {
+        final Dictionary<String, Object> properties = new Hashtable<>(userInfo.properties);
+        properties.put(USER_ID, userInfo.userId);
+        properties.put(DISABLED, userInfo.isDisabled);
+        properties.put(SYSTEM_USER, userInfo.isSystemUser);
+        if (!userInfo.memberOf.isEmpty()) {
+            properties.put(MEMBER_OF, userInfo.memberOf.toArray(new String[0]));
+        }
+        return properties;
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import org.apache.sling.jcr.presence.UserPresence;
+import org.apache.sling.jcr.presence.UserPresenceListener;
+import org.apache.sling.jcr.presence.UserPresenceRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of user presences backed by a copy-on-write snapshot.
+ * <p>
+ * Presence registrations record their changes, which are applied to a new
+ * snapshot and announced to listeners once per batch when {@link #flush()} is
+ * called. Lookups read the current snapshot without locking. Waiters for a
+ * presence are completed when a snapshot is published, their timeouts share a
+ * single scheduler thread.
+ */
+@Component(
+    service = {UserPresenceRegistry.class, PresenceRegistry.class}
+)
+public class PresenceRegistry implements UserPresenceRegistry {
+
+    private volatile Map<String, UserPresence> snapshot = Collections.emptyMap();
+
+    private final Lock lock = new ReentrantLock();
+
+    // guarded by lock, a user can be presented by several registrations
+    private final Map<String, Map<PresenceRegistration, Presence>> presences = new HashMap<>();
+
+    // guarded by lock
+    private final Set<String> changed = new HashSet<>();
+
+    // listeners for all users
+    private final List<UserPresenceListener> listeners = new CopyOnWriteArrayList<>();
+
+    // listeners by user ID
+    private final Map<String, List<UserPresenceListener>> userListeners = new ConcurrentHashMap<>();
+
+    // waiters by user ID
+    private final Map<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private static final String THREAD_NAME = "sling-jcr-presence-timeouts";
+
+    private final Logger logger = LoggerFactory.getLogger(PresenceRegistry.class);
+
+    private static final class Waiter {
+
+        final CompletableFuture<UserPresence> future = new CompletableFuture<>();
+
+        final Predicate<UserPresence> state;
+
+        Waiter(@NotNull final Predicate<UserPresence> state) {
+            this.state = state;
+        }
+
+        void test(@Nullable final UserPresence presence) {
+            if (Objects.isNull(presence) || future.isDone()) {
+                return;
+            }
+            try {
+                if (state.test(presence)) {
+                    future.complete(presence);
+                }
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+    }
+
+    @Activate
+    public void activate() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Deactivate
+    public void deactivate() {
+        scheduler.shutdownNow();
+        final List<Waiter> pending = new ArrayList<>();
+        waiters.values().forEach(pending::addAll);
+        for (final Waiter waiter : pending) {
+            waiter.future.completeExceptionally(new IllegalStateException("user presence registry deactivated"));
+        }
+    }
+
+    @Reference(
+        service = UserPresenceListener.class,
+        cardinality = ReferenceCardinality.MULTIPLE,
+        policy = ReferencePolicy.DYNAMIC
+    )
+    protected void bindUserPresenceListener(final UserPresenceListener listener, final Map<String, Object> properties) {
+        final Collection<String> userIds = userIds(properties.get(UserPresenceListener.USER_IDS));
+        if (userIds.isEmpty()) {
+            listeners.add(listener);
+        } else {
+            for (final String userId : userIds) {
+                userListeners.computeIfAbsent(userId, key -> new CopyOnWriteArrayList<>()).add(listener);
+            }
+        }
+    }
+
+    protected void unbindUserPresenceListener(final UserPresenceListener listener, final Map<String, Object> properties) {
+        listeners.remove(listener);
+        for (final String userId : userIds(properties.get(UserPresenceListener.USER_IDS))) {
+            userListeners.computeIfPresent(userId, (key, listeners) -> {
+                listeners.remove(listener);
+                return listeners.isEmpty() ? null : listeners;
+            });
+        }
+    }
+
+    @Override
+    public boolean isPresent(@NotNull final String userId) {
+        final UserPresence presence = snapshot.get(userId);
+        return Objects.nonNull(presence) && !presence.isDisabled();
+    }
+
+    @Override
+    @Nullable
+    public UserPresence get(@NotNull final String userId) {
+        return snapshot.get(userId);
+    }
+
+    @Override
+    @NotNull
+    public Map<String, UserPresence> getPresences() {
+        return snapshot;
+    }
+
+    @Override
+    @NotNull
+    public CompletionStage<UserPresence> awaitPresence(@NotNull final String userId, @NotNull final Predicate<UserPresence> state, @NotNull final Duration timeout) {
+        final Waiter waiter = new Waiter(state);
+        waiters.compute(userId, (key, userWaiters) -> {
+            final Set<Waiter> set = Objects.isNull(userWaiters) ? ConcurrentHashMap.newKeySet() : userWaiters;
+            set.add(waiter);
+            return set;
+        });
+        // test after adding the waiter to not miss a snapshot published concurrently
+        waiter.test(snapshot.get(userId));
+        final ScheduledFuture<?> expiry = waiter.future.isDone() ? null : scheduler.schedule(
+            () -> waiter.future.completeExceptionally(new TimeoutException(String.format("user presence for %s not published within %s", userId, timeout))),
+            timeout.toNanos(),
+            TimeUnit.NANOSECONDS
+        );
+        waiter.future.whenComplete((presence, throwable) -> {
+            if (Objects.nonNull(expiry)) {
+                expiry.cancel(false);
+            }
+            waiters.computeIfPresent(userId, (key, userWaiters) -> {
+                userWaiters.remove(waiter);
+                return userWaiters.isEmpty() ? null : userWaiters;
+            });
+        });
+        return waiter.future;
+    }
+
+    /**
+     * Records the presence published by a registration, {@code null} if unregistered.
+     */
+    void update(@NotNull final PresenceRegistration registration, @NotNull final String userId, @Nullable final Presence presence) {
+        lock.lock();
+        try {
+            if (Objects.isNull(presence)) {
+                presences.computeIfPresent(userId, (key, registrations) -> {
+                    registrations.remove(registration);
+                    return registrations.isEmpty() ? null : registrations;
+                });
+            } else {
+                presences.computeIfAbsent(userId, key -> new LinkedHashMap<>()).put(registration, presence);
+            }
+            changed.add(userId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes a new snapshot with all recorded changes, completes matching waiters and notifies listeners.
+     */
+    void flush() {
+        final Set<String> userIds = new HashSet<>();
+        lock.lock();
+        try {
+            if (changed.isEmpty()) {
+                return;
+            }
+            final Map<String, UserPresence> next = new HashMap<>(snapshot);
+            for (final String userId : changed) {
+                final Map<PresenceRegistration, Presence> registrations = presences.get(userId);
+                final UserPresence presence = Objects.isNull(registrations) ? null : registrations.values().iterator().next();
+                final UserPresence previous = Objects.isNull(presence) ? next.remove(userId) : next.put(userId, presence);
+                if (!Objects.equals(previous, presence)) {
+                    userIds.add(userId);
+                }
+            }
+            changed.clear();
+            snapshot = Collections.unmodifiableMap(next);
+        } finally {
+            lock.unlock();
+        }
+        if (!userIds.isEmpty()) {
+            completeWaiters(userIds);
+            notifyListeners(userIds);
+        }
+    }
+
+    private void completeWaiters(@NotNull final Set<String> userIds) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        final Map<String, UserPresence> snapshot = this.snapshot;
+        for (final String userId : userIds) {
+            final Set<Waiter> userWaiters = waiters.get(userId);
+            if (Objects.nonNull(userWaiters)) {
+                final UserPresence presence = snapshot.get(userId);
+                for (final Waiter waiter : userWaiters) {
+                    waiter.test(presence);
+                }
+            }
+        }
+    }
+
+    private void notifyListeners(@NotNull final Set<String> userIds) {
+        final Set<String> unmodifiableUserIds = Collections.unmodifiableSet(userIds);
+        for (final UserPresenceListener listener : listeners) {
+            notifyListener(listener, unmodifiableUserIds);
+        }
+        if (userListeners.isEmpty()) {
+            return;
+        }
+        final Map<UserPresenceListener, Set<String>> notifications = new IdentityHashMap<>();
+        for (final String userId : userIds) {
+            for (final UserPresenceListener listener : userListeners.getOrDefault(userId, Collections.emptyList())) {
+                notifications.computeIfAbsent(listener, key -> new HashSet<>()).add(userId);
+            }
+        }
+        notifications.forEach((listener, listenerUserIds) -> notifyListener(listener, Collections.unmodifiableSet(listenerUserIds)));
+    }
+
+    private void notifyListener(@NotNull final UserPresenceListener listener, @NotNull final Set<String> userIds) {
+        try {
+            listener.presencesChanged(userIds);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private static Collection<String> userIds(@Nullable final Object property) {
+        if (property instanceof String) {
+            return Collections.singleton((String) property);
+        } else if (property instanceof String[]) {
+            return Arrays.asList((String[]) property);
+        } else {
+            return Collections.emptySet();
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Compact binary file holding the last known state of presented users. The
+ * file is replaced atomically on save.
+ */
+final class PresenceSnapshotFile {
+
+    private static final int MAGIC = 0x534a5034; // SJP4
+
+    private static final byte STRING = 's';
+
+    private static final byte LONG = 'l';
+
+    private static final byte BOOLEAN = 'b';
+
+    private static final byte DOUBLE = 'd';
+
+    private static final byte LIST = 'L';
+
+    private final File file;
+
+    PresenceSnapshotFile(@NotNull final File file) {
+        this.file = file;
+    }
+
+    @NotNull
+    List<UserInfo> load() throws IOException {
+        if (!file.isFile()) {
+            return Collections.emptyList();
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException(String.format("unknown format of presence snapshot %s", file));
+            }
+            final int count = input.readInt();
+            final List<UserInfo> userInfos = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final String userId = readString(input);
+                final String path = readString(input);
+                final boolean isDisabled = input.readBoolean();
+                final boolean isSystemUser = input.readBoolean();
+                final int memberOfCount = input.readInt();
+                final Set<String> memberOf = new HashSet<>();
+                for (int j = 0; j < memberOfCount; j++) {
+                    memberOf.add(readString(input));
+                }
+                final int propertyCount = input.readInt();
+                final Map<String, Object> properties = new LinkedHashMap<>();
+                for (int j = 0; j < propertyCount; j++) {
+                    properties.put(readString(input), readValue(input));
+                }
+                userInfos.add(new UserInfo(userId, path, isDisabled, isSystemUser, memberOf, properties));
+            }
+            return userInfos;
+        }
+    }
+
+    void save(@NotNull final Collection<UserInfo> userInfos) throws IOException {
+        final File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+        final List<UserInfo> entries = new ArrayList<>(userInfos);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary.toPath())))) {
+            output.writeInt(MAGIC);
+            output.writeInt(entries.size());
+            for (final UserInfo userInfo : entries) {
+                writeString(output, userInfo.userId);
+                writeString(output, userInfo.path);
+                output.writeBoolean(userInfo.isDisabled);
+                output.writeBoolean(userInfo.isSystemUser);
+                output.writeInt(userInfo.memberOf.size());
+                for (final String groupId : userInfo.memberOf) {
+                    writeString(output, groupId);
+                }
+                output.writeInt(userInfo.properties.size());
+                for (final Map.Entry<String, Object> property : userInfo.properties.entrySet()) {
+                    writeString(output, property.getKey());
+                    writeValue(output, property.getValue());
+                }
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // unlike modified UTF-8, not limited to 64 KB
+    @NotNull
+    private static String readString(@NotNull final DataInputStream input) throws IOException {
+        final int length = input.readInt();
+        if (length < 0) {
+            throw new IOException(String.format("invalid string length %s in presence snapshot", length));
+        }
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(@NotNull final DataOutputStream output, @NotNull final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    @NotNull
+    private static Object readValue(@NotNull final DataInputStream input) throws IOException {
+        final byte type = input.readByte();
+        switch (type) {
+            case STRING:
+                return readString(input);
+            case LONG:
+                return input.readLong();
+            case BOOLEAN:
+                return input.readBoolean();
+            case DOUBLE:
+                return input.readDouble();
+            case LIST:
+                final int count = input.readInt();
+                final List<Object> values = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    values.add(readValue(input));
+                }
+                return Collections.unmodifiableList(values);
+            default:
+                throw new IOException(String.format("unknown value type %s in presence snapshot", type));
+        }
+    }
+
+    private static void writeValue(@NotNull final DataOutputStream output, @NotNull final Object value) throws IOException {
+        if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof List) {
+            final List<?> values = (List<?>) value;
+            output.writeByte(LIST);
+            output.writeInt(values.size());
+            for (final Object element : values) {
+                writeValue(output, element);
+            }
+        } else {
+            output.writeByte(STRING);
+            writeString(output, String.valueOf(value));
+        }
+    }
+
+}
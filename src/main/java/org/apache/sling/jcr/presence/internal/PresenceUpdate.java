@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+final class PresenceUpdate {
+
+    final String userId;
+
+    // null if the user is absent or has to be resolved
+    final UserInfo userInfo;
+
+    final boolean resolve;
+
+    // date of the observed commit in milliseconds since the epoch, 0 if unknown
+    final long commitDate;
+
+    private PresenceUpdate(@NotNull final String userId, @Nullable final UserInfo userInfo, final boolean resolve, final long commitDate) {
+        this.userId = userId;
+        this.userInfo = userInfo;
+        this.resolve = resolve;
+        this.commitDate = commitDate;
+    }
+
+    static PresenceUpdate present(@NotNull final UserInfo userInfo, final long commitDate) {
+        return new PresenceUpdate(userInfo.userId, userInfo, false, commitDate);
+    }
+
+    static PresenceUpdate absent(@NotNull final String userId, final long commitDate) {
+        return new PresenceUpdate(userId, null, false, commitDate);
+    }
+
+    static PresenceUpdate resolve(@NotNull final String userId) {
+        return new PresenceUpdate(userId, null, true, 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PresenceUpdate[userId=%s, userInfo=%s, resolve=%s, commitDate=%s]", userId, userInfo, resolve, commitDate);
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of pending presence updates, drained by a dedicated thread.
+ * Pending updates are merged per user, a newer update replaces an older one
+ * which has not been processed yet. An update becomes due when no further
+ * update for the same user arrived within the quiet window or when it has
+ * been pending for the maximum delay, so a burst of changes to one user is
+ * processed once with its final state. Due updates are handed over to the
+ * consumer in batches.
+ */
+final class PresenceUpdateQueue {
+
+    enum OverflowPolicy {
+        /**
+         * Waits for space. Stalls the thread offering updates, i.e. the thread
+         * calling {@code Observer.contentChanged}, which is the commit thread
+         * for observers registered with the whiteboard.
+         */
+        BLOCK,
+        /**
+         * Discards the update and notifies the discard handler, which has to
+         * recover the lost state.
+         */
+        DISCARD
+    }
+
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final int capacity;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final long quietWindow;
+
+    private final long maxDelay;
+
+    private final Consumer<List<PresenceUpdate>> consumer;
+
+    private final Runnable discardHandler;
+
+    private final ExecutorService executor;
+
+    private final PresenceMetrics metrics;
+
+    private volatile boolean closed;
+
+    private static final String THREAD_NAME = "sling-jcr-presence-updates";
+
+    private final Logger logger = LoggerFactory.getLogger(PresenceUpdateQueue.class);
+
+    PresenceUpdateQueue(final int capacity, @NotNull final OverflowPolicy overflowPolicy, final long quietWindow, final long maxDelay, @NotNull final TimeUnit unit, @NotNull final PresenceMetrics metrics, @NotNull final Consumer<List<PresenceUpdate>> consumer, @NotNull final Runnable discardHandler) {
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.quietWindow = unit.toNanos(Math.max(0, quietWindow));
+        this.maxDelay = unit.toNanos(Math.max(quietWindow, maxDelay));
+        this.metrics = metrics;
+        this.consumer = consumer;
+        this.discardHandler = discardHandler;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::drain);
+    }
+
+    void offer(@NotNull final PresenceUpdate update) {
+        offer(update, true, overflowPolicy == OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Offers the update only if no update for the same user is pending. A
+     * pending update carries a newer or equal state of the user, which must
+     * not be replaced by a state derived from an older one.
+     */
+    void offerIfAbsent(@NotNull final PresenceUpdate update) {
+        offer(update, false, overflowPolicy == OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Like {@link #offerIfAbsent(PresenceUpdate)}, but waits for space
+     * regardless of the overflow policy. Only to be called off the
+     * observation thread.
+     */
+    void putIfAbsent(@NotNull final PresenceUpdate update) {
+        offer(update, false, true);
+    }
+
+    private void offer(@NotNull final PresenceUpdate update, final boolean replace, final boolean block) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            final Pending merged = pending.get(update.userId);
+            if (merged != null) {
+                if (replace) {
+                    merged.update = update;
+                    merged.lastOffered = System.nanoTime();
+                    metrics.queueMerged();
+                }
+                return;
+            }
+            while (pending.size() >= capacity) {
+                if (!block) {
+                    metrics.queueDiscarded();
+                    logger.warn("presence update queue full, discarding {}", update);
+                    discardHandler.run();
+                    return;
+                }
+                metrics.queueBlocked();
+                notFull.await();
+                if (closed) {
+                    return;
+                }
+            }
+            pending.put(update.userId, new Pending(update, System.nanoTime()));
+            metrics.queued();
+            // a new update is never due before the already pending ones
+            if (pending.size() == 1) {
+                notEmpty.signal();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted while waiting for presence update queue, discarding {}", update);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            metrics.dequeued(pending.size());
+            pending.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("presence update thread did not terminate");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        final List<PresenceUpdate> due = new ArrayList<>();
+        while (!closed) {
+            lock.lock();
+            try {
+                while (!closed && !takeDue(due)) {
+                    if (pending.isEmpty()) {
+                        notEmpty.await();
+                    } else {
+                        notEmpty.awaitNanos(nextDue() - System.nanoTime());
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                metrics.dequeued(due.size());
+                notFull.signalAll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                consumer.accept(due);
+            } catch (Exception e) {
+                logger.error("processing {} presence updates failed", due.size(), e);
+            }
+            due.clear();
+        }
+    }
+
+    // moves all due updates into given list, caller must hold the lock
+    private boolean takeDue(@NotNull final List<PresenceUpdate> due) {
+        final long now = System.nanoTime();
+        boolean resolving = false;
+        final Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            final Pending entry = iterator.next();
+            if (entry.due() - now <= 0) {
+                due.add(entry.update);
+                resolving |= entry.update.resolve;
+                iterator.remove();
+            }
+        }
+        if (resolving) {
+            // resolving reads the current state, so pending resolves can join the batch early
+            final Iterator<Pending> resolves = pending.values().iterator();
+            while (resolves.hasNext()) {
+                final Pending entry = resolves.next();
+                if (entry.update.resolve) {
+                    due.add(entry.update);
+                    resolves.remove();
+                }
+            }
+        }
+        return !due.isEmpty();
+    }
+
+    // caller must hold the lock and ensure that there are pending updates
+    private long nextDue() {
+        final Iterator<Pending> iterator = pending.values().iterator();
+        long next = iterator.next().due();
+        while (iterator.hasNext()) {
+            final long due = iterator.next().due();
+            if (due - next < 0) {
+                next = due;
+            }
+        }
+        return next;
+    }
+
+    private final class Pending {
+
+        PresenceUpdate update;
+
+        final long firstOffered;
+
+        long lastOffered;
+
+        Pending(@NotNull final PresenceUpdate update, final long offered) {
+            this.update = update;
+            this.firstOffered = offered;
+            this.lastOffered = offered;
+        }
+
+        long due() {
+            final long quiet = lastOffered + quietWindow;
+            final long latest = firstOffered + maxDelay;
+            return quiet - latest < 0 ? quiet : latest;
+        }
+
+    }
+
+}
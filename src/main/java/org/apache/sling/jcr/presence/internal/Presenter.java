@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.Collection;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An entry in the {@link UserPresenceObserver} index, presenting one or more users.
+ */
+interface Presenter {
+
+    /**
+     * @return IDs of users which are presented regardless of their path
+     */
+    @NotNull
+    Collection<String> getUserIds();
+
+    /**
+     * @return {@code true} if users have to be selected with {@link #selects(String, String)}
+     */
+    boolean hasPatterns();
+
+    /**
+     * @return IDs of all users currently selected, or {@code null} if users
+     * selected by pattern or path can only be found by a query
+     */
+    @Nullable
+    Collection<String> getSelectedUserIds();
+
+    boolean selects(@NotNull String userId, @NotNull String path);
+
+    /**
+     * @param userInfo the current state of the user or {@code null} if absent
+     * @return {@code true} if a presence was registered, modified or unregistered
+     */
+    boolean update(@NotNull String userId, @Nullable UserInfo userInfo);
+
+}
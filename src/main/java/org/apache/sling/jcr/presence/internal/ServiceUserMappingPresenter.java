@@ -0,0 +1,476 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.jcr.presence.ServicePresence;
+import org.apache.sling.serviceusermapping.Mapping;
+import org.apache.sling.serviceusermapping.ServiceUserMapped;
+import org.apache.sling.serviceusermapping.ServiceUserMapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Presents service user mappings whose users are present.
+ * <p>
+ * Mappings and their user IDs are taken from the active mappings of the
+ * service user mapper, without validating the users, so a mapping can be
+ * resolved before its users exist. The users of all mappings are selected from
+ * the observed users, and a {@link ServicePresence} is registered for a mapping
+ * as long as all of its users are present and not disabled.
+ * <p>
+ * The {@code ServiceUserMapped} services are not used, the service user mapper
+ * hides them from bundles with other service names.
+ * <p>
+ * State is changed under a lock, service registrations are changed after
+ * releasing it, serially per mapping.
+ */
+@Component(
+    service = ConfigurationListener.class,
+    immediate = true,
+    configurationPolicy = ConfigurationPolicy.REQUIRE
+)
+@Designate(
+    ocd = ServiceUserMappingPresenterConfiguration.class
+)
+public class ServiceUserMappingPresenter implements Presenter, ConfigurationListener {
+
+    private static final String SERVICE_NAME = "serviceName";
+
+    private static final String USER_IDS = "userIds";
+
+    private static final String MAPPER_PID = "org.apache.sling.serviceusermapping.impl.ServiceUserMapperImpl";
+
+    private static final class MappedService implements ServicePresence {
+
+        final String serviceName;
+
+        final String subServiceName;
+
+        // guarded by the presenter lock
+        List<String> userIds = Collections.emptyList();
+
+        // user IDs to publish, empty if the mapping is not usable, requested under the presenter lock
+        volatile List<String> requestedUserIds = Collections.emptyList();
+
+        private final AtomicInteger requests = new AtomicInteger();
+
+        // only accessed by the thread applying requests
+        private ServiceRegistration<ServicePresence> registration;
+
+        private volatile List<String> publishedUserIds = Collections.emptyList();
+
+        MappedService(@NotNull final String serviceName, @Nullable final String subServiceName) {
+            this.serviceName = serviceName;
+            this.subServiceName = subServiceName;
+        }
+
+        @Override
+        @NotNull
+        public String getServiceName() {
+            return serviceName;
+        }
+
+        @Override
+        @Nullable
+        public String getSubServiceName() {
+            return subServiceName;
+        }
+
+        @Override
+        @NotNull
+        public List<String> getUserIds() {
+            return publishedUserIds;
+        }
+
+        /**
+         * Applies the requested user IDs, unless another thread is applying
+         * them, which then applies this request as well.
+         *
+         * @return {@code true} if a service event was fired by this thread
+         */
+        boolean publish(@Nullable final BundleContext bundleContext, @NotNull final Logger logger) {
+            if (requests.getAndIncrement() != 0) {
+                return false;
+            }
+            boolean published = false;
+            do {
+                try {
+                    published |= apply(bundleContext, logger);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            } while (requests.decrementAndGet() != 0);
+            return published;
+        }
+
+        private boolean apply(@Nullable final BundleContext bundleContext, @NotNull final Logger logger) {
+            final List<String> userIds = Objects.isNull(bundleContext) ? Collections.emptyList() : requestedUserIds;
+            if (userIds.isEmpty()) {
+                if (Objects.isNull(registration)) {
+                    return false;
+                }
+                try {
+                    registration.unregister();
+                } catch (IllegalStateException e) {
+                    logger.debug(e.getMessage(), e);
+                } finally {
+                    registration = null;
+                    publishedUserIds = Collections.emptyList();
+                }
+                logger.info("service presence for {} unregistered", key(serviceName, subServiceName));
+                return true;
+            }
+            if (userIds.equals(publishedUserIds) && Objects.nonNull(registration)) {
+                return false;
+            }
+            publishedUserIds = userIds;
+            if (Objects.isNull(registration)) {
+                registration = bundleContext.registerService(ServicePresence.class, this, serviceProperties());
+                logger.info("service presence for {} registered", key(serviceName, subServiceName));
+            } else {
+                registration.setProperties(serviceProperties());
+            }
+            return true;
+        }
+
+        @NotNull
+        private Dictionary<String, Object> serviceProperties() {
+            final Dictionary<String, Object> properties = new Hashtable<>();
+            properties.put(SERVICE_NAME, serviceName);
+            if (Objects.nonNull(subServiceName)) {
+                properties.put(ServiceUserMapped.SUBSERVICENAME, subServiceName);
+            }
+            properties.put(USER_IDS, publishedUserIds.toArray(new String[0]));
+            return properties;
+        }
+
+    }
+
+    @Reference
+    private volatile UserPresenceObserver userPresenceObserver;
+
+    @Reference
+    private volatile ServiceUserMapper serviceUserMapper;
+
+    private final Object lock = new Object();
+
+    // mappings by service and subservice name, guarded by lock
+    private final Map<String, MappedService> mappings = new HashMap<>();
+
+    // observed state of mapped users, guarded by lock
+    private final Map<String, UserInfo> userInfos = new HashMap<>();
+
+    // keys of mappings by mapped user ID, modified under lock
+    private final Map<String, Set<String>> keysByUserId = new ConcurrentHashMap<>();
+
+    private volatile Set<String> serviceNames = Collections.emptySet();
+
+    // null if not active
+    private volatile BundleContext bundleContext;
+
+    private ScheduledExecutorService scheduler;
+
+    private static final String THREAD_NAME = "sling-jcr-presence-service-user-mappings";
+
+    // the mapper applies its configuration asynchronously, mappings are resolved again after these delays
+    private static final long[] RESOLUTION_DELAYS = {1, 5, 30};
+
+    private final Logger logger = LoggerFactory.getLogger(ServiceUserMappingPresenter.class);
+
+    @Activate
+    public void activate(final ServiceUserMappingPresenterConfiguration configuration, final BundleContext bundleContext) {
+        serviceNames = new HashSet<>(Arrays.asList(configuration.serviceNames()));
+        logger.info("activating service user mapping presenter for service names {}", serviceNames);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.bundleContext = bundleContext;
+        // the users of all mappings resolved so far are selected on registration
+        resolveMappings();
+        userPresenceObserver.register(this);
+        scheduleResolution();
+    }
+
+    @Deactivate
+    public void deactivate() {
+        logger.info("deactivating service user mapping presenter");
+        scheduler.shutdownNow();
+        userPresenceObserver.unregister(this);
+        this.bundleContext = null;
+        final List<MappedService> closed;
+        synchronized (lock) {
+            closed = new ArrayList<>(mappings.values());
+        }
+        publish(closed);
+    }
+
+    @Override
+    public void configurationEvent(final ConfigurationEvent event) {
+        // the mapper itself and its amendments
+        if (MAPPER_PID.equals(event.getPid()) || (Objects.nonNull(event.getFactoryPid()) && event.getFactoryPid().startsWith(MAPPER_PID))) {
+            resolveMappings();
+            scheduleResolution();
+        }
+    }
+
+    @Override
+    @NotNull
+    public Collection<String> getUserIds() {
+        return Collections.emptyList();
+    }
+
+    // mapped users change with the mappings, but are never selected by pattern or path
+    @Override
+    public boolean hasPatterns() {
+        return true;
+    }
+
+    @Override
+    @NotNull
+    public Collection<String> getSelectedUserIds() {
+        return Collections.unmodifiableSet(keysByUserId.keySet());
+    }
+
+    @Override
+    public boolean selects(@NotNull final String userId, @NotNull final String path) {
+        return keysByUserId.containsKey(userId);
+    }
+
+    @Override
+    public boolean update(@NotNull final String userId, @Nullable final UserInfo userInfo) {
+        if (!keysByUserId.containsKey(userId)) {
+            return false;
+        }
+        final List<MappedService> changed = new ArrayList<>();
+        synchronized (lock) {
+            final Set<String> keys = keysByUserId.get(userId);
+            if (Objects.isNull(keys)) {
+                return false;
+            }
+            if (Objects.isNull(userInfo)) {
+                userInfos.remove(userId);
+            } else {
+                userInfos.put(userId, userInfo);
+            }
+            for (final String key : keys) {
+                request(mappings.get(key), changed);
+            }
+        }
+        return publish(changed);
+    }
+
+    private void scheduleResolution() {
+        final ScheduledExecutorService scheduler = this.scheduler;
+        try {
+            for (final long delay : RESOLUTION_DELAYS) {
+                scheduler.schedule(this::resolveMappings, delay, TimeUnit.SECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            logger.debug("not resolving service user mappings, presenter deactivated");
+        }
+    }
+
+    private void resolveMappings() {
+        if (Objects.isNull(bundleContext)) {
+            return;
+        }
+        final Map<String, List<String>> resolved = resolvedMappings();
+        final Set<String> unresolved = new HashSet<>();
+        final List<MappedService> changed = new ArrayList<>();
+        synchronized (lock) {
+            final Iterator<Map.Entry<String, MappedService>> iterator = mappings.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final MappedService mapping = iterator.next().getValue();
+                if (!resolved.containsKey(key(mapping.serviceName, mapping.subServiceName))) {
+                    iterator.remove();
+                    index(mapping, Collections.emptyList());
+                    request(mapping, changed);
+                }
+            }
+            for (final Map.Entry<String, List<String>> entry : resolved.entrySet()) {
+                final MappedService mapping = mappings.computeIfAbsent(entry.getKey(), key -> newMapping(key));
+                final List<String> userIds = entry.getValue();
+                if (!userIds.equals(mapping.userIds)) {
+                    index(mapping, userIds);
+                    for (final String userId : userIds) {
+                        if (!userInfos.containsKey(userId)) {
+                            unresolved.add(userId);
+                        }
+                    }
+                }
+                request(mapping, changed);
+            }
+        }
+        publish(changed);
+        resolve(unresolved);
+    }
+
+    /**
+     * Reads the raw mappings, users are validated by the service user mapper
+     * only when they are used. The first active mapping of a service and
+     * subservice name is the one applied by the mapper.
+     *
+     * @return user IDs by key of mapping
+     */
+    @NotNull
+    private Map<String, List<String>> resolvedMappings() {
+        final Map<String, List<String>> resolved = new HashMap<>();
+        for (final Mapping mapping : activeMappings()) {
+            final String serviceName = mapping.getServiceName();
+            final String subServiceName = mapping.getSubServiceName();
+            if (Objects.isNull(serviceName) || (!serviceNames.isEmpty() && !serviceNames.contains(serviceName))) {
+                continue;
+            }
+            final String key = key(serviceName, subServiceName);
+            if (resolved.containsKey(key)) {
+                continue;
+            }
+            final List<String> userIds = mappedUserIds(mapping, serviceName, subServiceName);
+            if (!userIds.isEmpty()) {
+                resolved.put(key, userIds);
+            }
+        }
+        return resolved;
+    }
+
+    @NotNull
+    private static List<String> mappedUserIds(@NotNull final Mapping mapping, @NotNull final String serviceName, @Nullable final String subServiceName) {
+        final String userId = mapping.map(serviceName, subServiceName);
+        if (Objects.nonNull(userId)) {
+            return Collections.singletonList(userId);
+        }
+        // principal names of service users are their IDs
+        final Iterable<String> principalNames = mapping.mapPrincipals(serviceName, subServiceName);
+        final List<String> userIds = new ArrayList<>();
+        if (Objects.nonNull(principalNames)) {
+            principalNames.forEach(userIds::add);
+        }
+        return userIds;
+    }
+
+    @NotNull
+    private List<Mapping> activeMappings() {
+        final ServiceUserMapper serviceUserMapper = this.serviceUserMapper;
+        try {
+            return Objects.isNull(serviceUserMapper) ? Collections.emptyList() : serviceUserMapper.getActiveMappings();
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            return Collections.emptyList();
+        }
+    }
+
+    @NotNull
+    private static MappedService newMapping(@NotNull final String key) {
+        final int separator = key.indexOf(':');
+        return separator < 0 ? new MappedService(key, null) : new MappedService(key.substring(0, separator), key.substring(separator + 1));
+    }
+
+    // must hold lock
+    private void index(@NotNull final MappedService mapping, @NotNull final List<String> userIds) {
+        final String key = key(mapping.serviceName, mapping.subServiceName);
+        for (final String userId : mapping.userIds) {
+            keysByUserId.computeIfPresent(userId, (id, keys) -> {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    userInfos.remove(id);
+                    return null;
+                }
+                return keys;
+            });
+        }
+        for (final String userId : userIds) {
+            keysByUserId.computeIfAbsent(userId, id -> new HashSet<>()).add(key);
+        }
+        mapping.userIds = userIds;
+    }
+
+    // must hold lock, a mapping is usable if all of its users are present and not disabled
+    private void request(@Nullable final MappedService mapping, @NotNull final List<MappedService> changed) {
+        if (Objects.isNull(mapping)) {
+            return;
+        }
+        boolean usable = !mapping.userIds.isEmpty() && mappings.containsValue(mapping);
+        for (final String userId : mapping.userIds) {
+            final UserInfo userInfo = userInfos.get(userId);
+            usable &= Objects.nonNull(userInfo) && !userInfo.isDisabled;
+        }
+        final List<String> userIds = usable ? Collections.unmodifiableList(new ArrayList<>(mapping.userIds)) : Collections.emptyList();
+        if (!userIds.equals(mapping.requestedUserIds)) {
+            mapping.requestedUserIds = userIds;
+            changed.add(mapping);
+        }
+    }
+
+    // must not hold lock
+    private boolean publish(@NotNull final List<MappedService> changed) {
+        final BundleContext bundleContext = this.bundleContext;
+        boolean published = false;
+        for (final MappedService mapping : changed) {
+            published |= mapping.publish(bundleContext, logger);
+        }
+        return published;
+    }
+
+    private void resolve(@NotNull final Set<String> userIds) {
+        final UserPresenceObserver userPresenceObserver = this.userPresenceObserver;
+        if (!userIds.isEmpty() && Objects.nonNull(userPresenceObserver)) {
+            userPresenceObserver.resolve(userIds);
+        }
+    }
+
+    @NotNull
+    private static String key(@NotNull final String serviceName, @Nullable final String subServiceName) {
+        return Objects.isNull(subServiceName) ? serviceName : serviceName + ":" + subServiceName;
+    }
+
+}
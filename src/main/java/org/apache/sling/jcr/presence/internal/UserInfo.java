@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jetbrains.annotations.NotNull;
+
+final class UserInfo {
+
+    final String userId;
+
+    final String path;
+
+    final boolean isDisabled;
+
+    final boolean isSystemUser;
+
+    // IDs of configured groups the user is a member of
+    final Set<String> memberOf;
+
+    // configured extra service properties
+    final Map<String, Object> properties;
+
+    UserInfo(@NotNull final String userId, @NotNull final String path, final boolean isDisabled, final boolean isSystemUser) {
+        this(userId, path, isDisabled, isSystemUser, Collections.emptySet(), Collections.emptyMap());
+    }
+
+    UserInfo(@NotNull final String userId, @NotNull final String path, final boolean isDisabled, final boolean isSystemUser, @NotNull final Set<String> memberOf, @NotNull final Map<String, Object> properties) {
+        this.userId = userId;
+        this.path = path;
+        this.isDisabled = isDisabled;
+        this.isSystemUser = isSystemUser;
+        this.memberOf = memberOf.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(new TreeSet<>(memberOf));
+        this.properties = properties.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+    }
+
+    @NotNull
+    UserInfo withMemberOf(@NotNull final Set<String> memberOf) {
+        return memberOf.equals(this.memberOf) ? this : new UserInfo(userId, path, isDisabled, isSystemUser, memberOf, properties);
+    }
+
+    // equal if all published values are equal, the path is not published (unless as extra service property)
+    @Override
+    public boolean equals(final Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof UserInfo)) {
+            return false;
+        }
+        final UserInfo other = (UserInfo) object;
+        return userId.equals(other.userId) && isDisabled == other.isDisabled && isSystemUser == other.isSystemUser && memberOf.equals(other.memberOf) && properties.equals(other.properties);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(userId, isDisabled, isSystemUser, memberOf, properties);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UserInfo[userId=%s, path=%s, disabled=%s, systemUser=%s, memberOf=%s, properties=%s]", userId, path, isDisabled, isSystemUser, memberOf, properties);
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+public interface UserPresenceMetricsMBean {
+
+    String OBJECT_NAME = "org.apache.sling:type=JcrPresence,name=UserPresenceMetrics";
+
+    long getCommitCount();
+
+    double getObservationTimeMean();
+
+    double getObservationTime99thPercentile();
+
+    double getObservationTimeMax();
+
+    long getObservedAuthorizableCount();
+
+    long getMatchedAuthorizableCount();
+
+    long getLookupCount();
+
+    double getLookupTimeMean();
+
+    double getLookupTime99thPercentile();
+
+    double getLookupTimeMax();
+
+    long getLoginCount();
+
+    double getLoginTimeMean();
+
+    double getLoginTimeMax();
+
+    long getRegisteredCount();
+
+    long getUnregisteredCount();
+
+    long getModifiedCount();
+
+    long getSuppressedCount();
+
+    long getPublishedLatencyCount();
+
+    double getPublishedLatencyMean();
+
+    double getPublishedLatency50thPercentile();
+
+    double getPublishedLatency99thPercentile();
+
+    double getPublishedLatencyMax();
+
+    long getQueueDepth();
+
+    long getQueueMergedCount();
+
+    long getQueueBlockedCount();
+
+    long getQueueDiscardedCount();
+
+    long getReconciliationCount();
+
+    long getOverflowCount();
+
+}
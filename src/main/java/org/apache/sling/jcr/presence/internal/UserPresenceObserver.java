@@ -0,0 +1,776 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.JcrConstants.JCR_UUID;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.MISSING_NODE;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_AUTHORIZABLE_ID;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_DISABLED;
+
+@Component(
+    service = {Observer.class, UserPresenceObserver.class},
+    immediate = true
+)
+@Designate(
+    ocd = UserPresenceObserverConfiguration.class
+)
+public class UserPresenceObserver implements Observer {
+
+    @Reference
+    private volatile SlingRepository slingRepository;
+
+    @Reference
+    private volatile PresenceRegistry presenceRegistry;
+
+    @Reference(
+        cardinality = ReferenceCardinality.OPTIONAL,
+        policyOption = ReferencePolicyOption.GREEDY
+    )
+    private volatile MetricsService metricsService;
+
+    // presenters by ID of presented user
+    private final Map<String, Set<Presenter>> presenters = new ConcurrentHashMap<>();
+
+    // presenters selecting users by pattern or path
+    private final Set<Presenter> patternPresenters = ConcurrentHashMap.newKeySet();
+
+    // observations of the current commit, only accessed from the observation thread
+    private final Map<String, Optional<UserInfo>> observations = new HashMap<>();
+
+    private final Set<String> unresolved = new HashSet<>();
+
+    // written by the observation thread
+    private volatile NodeState previousRoot;
+
+    // root up to which groups were observed, only accessed from the reconciliation thread
+    private NodeState groupsRoot = MISSING_NODE;
+
+    private final AtomicBoolean groupsScheduled = new AtomicBoolean();
+
+    private volatile long groupsCommitDate;
+
+    // last known state of presented users, persisted to speed up startup
+    private final Map<String, UserInfo> knownUserInfos = new ConcurrentHashMap<>();
+
+    private volatile boolean knownUserInfosChanged;
+
+    private long knownUserInfosSaved;
+
+    private long persistInterval;
+
+    private PresenceSnapshotFile snapshotFile;
+
+    private volatile boolean reconcileExternalChanges;
+
+    private final AtomicBoolean reconciliationRequested = new AtomicBoolean();
+
+    private final AtomicBoolean resyncScheduled = new AtomicBoolean();
+
+    private final AtomicBoolean pruneScheduled = new AtomicBoolean();
+
+    private static final long PRUNE_DELAY_SECONDS = 60;
+
+    private long reconciliationInterval;
+
+    private ScheduledExecutorService reconciler;
+
+    private volatile long overflowDiffBudget;
+
+    private static final String RECONCILER_THREAD_NAME = "sling-jcr-presence-reconciliation";
+
+    private volatile boolean evaluateNodeState;
+
+    private volatile Set<String> excludedNodeNames;
+
+    private volatile List<String> includedPaths;
+
+    private volatile List<String> groupPaths;
+
+    private volatile PresenceProperties presenceProperties = PresenceProperties.NONE;
+
+    private volatile GroupMembershipCache membershipCache;
+
+    // IDs of known users by content ID, to map membership changes to users
+    private final Map<String, String> userIdsByContentId = new ConcurrentHashMap<>();
+
+    private final Map<String, String> contentIdsByUserId = new ConcurrentHashMap<>();
+
+    private UserResolver userResolver;
+
+    private PresenceUpdateQueue updateQueue;
+
+    private PresenceMetrics metrics;
+
+    private ServiceRegistration<DynamicMBean> metricsRegistration;
+
+    private final Logger logger = LoggerFactory.getLogger(UserPresenceObserver.class);
+
+    @Activate
+    public void activate(final UserPresenceObserverConfiguration configuration, final BundleContext bundleContext) {
+        // Sling Metrics may be bound or unbound at any time
+        metrics = new PresenceMetrics(() -> {
+            final MetricsService metricsService = this.metricsService;
+            return Objects.nonNull(metricsService) ? metricsService : MetricsService.NOOP;
+        });
+        metricsRegistration = registerMetricsMBean(bundleContext, metrics);
+        evaluateNodeState = configuration.evaluateNodeState();
+        excludedNodeNames = new HashSet<>(Arrays.asList(configuration.excludedNodeNames()));
+        includedPaths = includedPaths(configuration.includedPaths());
+        groupPaths = includedPaths(configuration.groupPaths());
+        membershipCache = configuration.memberOfGroups().length == 0 ? null : new GroupMembershipCache(Arrays.asList(configuration.memberOfGroups()));
+        presenceProperties = PresenceProperties.parse(configuration.serviceProperties());
+        userResolver = new UserResolver(slingRepository, presenceProperties, metrics, configuration.resolverParallelism(), configuration.resolverBatchSize());
+        persistInterval = TimeUnit.MILLISECONDS.toNanos(configuration.persistInterval());
+        snapshotFile = configuration.persistPresences() ? snapshotFile(bundleContext) : null;
+        loadKnownUserInfos();
+        // also resyncs presences after observation queue overflows and discarded updates
+        reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, RECONCILER_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!knownUserInfos.isEmpty()) {
+            // drops persisted users of presenters which are gone
+            schedulePrune();
+        }
+        updateQueue = new PresenceUpdateQueue(
+            configuration.updateQueueCapacity(),
+            configuration.updateQueueOverflowPolicy(),
+            configuration.coalescingQuietWindow(),
+            configuration.coalescingMaxDelay(),
+            TimeUnit.MILLISECONDS,
+            metrics,
+            this::dispatch,
+            this::resync
+        );
+        overflowDiffBudget = configuration.overflowDiffBudget() > 0 ? configuration.overflowDiffBudget() : Long.MAX_VALUE;
+        reconcileExternalChanges = configuration.reconcileExternalChanges();
+        reconciliationInterval = configuration.reconciliationInterval();
+        if (reconcileExternalChanges) {
+            reconciler.scheduleWithFixedDelay(this::reconcile, reconciliationInterval, reconciliationInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        reconciler.shutdownNow();
+        updateQueue.close();
+        userResolver.close();
+        saveKnownUserInfos();
+        if (Objects.nonNull(metricsRegistration)) {
+            metricsRegistration.unregister();
+        }
+        logger.info("presences registered: {}, modified: {}, unregistered: {}, suppressed: {}", metrics.getRegisteredCount(), metrics.getModifiedCount(), metrics.getUnregisteredCount(), metrics.getSuppressedCount());
+    }
+
+    @NotNull
+    PresenceMetrics getMetrics() {
+        return metrics;
+    }
+
+    @NotNull
+    PresenceRegistry getRegistry() {
+        return presenceRegistry;
+    }
+
+    /**
+     * Adds the presenter to the index and schedules resolving its users. Users
+     * selected by pattern or path are found by a query on the reconciliation
+     * thread.
+     */
+    void register(@NotNull final Presenter presenter) {
+        final Set<String> userIds = new LinkedHashSet<>(presenter.getUserIds());
+        for (final String userId : userIds) {
+            presenters.computeIfAbsent(userId, key -> ConcurrentHashMap.newKeySet()).add(presenter);
+        }
+        publishKnownUserInfos(presenter, userIds);
+        final Set<String> resolved = new LinkedHashSet<>(userIds);
+        if (presenter.hasPatterns()) {
+            patternPresenters.add(presenter);
+            final Collection<String> selectedUserIds = presenter.getSelectedUserIds();
+            if (Objects.nonNull(selectedUserIds)) {
+                resolved.addAll(selectedUserIds);
+            } else {
+                try {
+                    reconciler.execute(() -> findUsers(presenter));
+                } catch (RejectedExecutionException e) {
+                    logger.debug("not finding users, observer deactivated");
+                }
+            }
+        }
+        for (final String userId : resolved) {
+            updateQueue.offer(PresenceUpdate.resolve(userId));
+        }
+        logger.debug("presenter for {} users registered", resolved.size());
+    }
+
+    /**
+     * Schedules resolving the given users, e.g. when a presenter starts selecting them.
+     */
+    void resolve(@NotNull final Collection<String> userIds) {
+        for (final String userId : userIds) {
+            updateQueue.offer(PresenceUpdate.resolve(userId));
+        }
+    }
+
+    void unregister(@NotNull final Presenter presenter) {
+        patternPresenters.remove(presenter);
+        for (final String userId : presenter.getUserIds()) {
+            presenters.computeIfPresent(userId, (key, userPresenters) -> {
+                userPresenters.remove(presenter);
+                return userPresenters.isEmpty() ? null : userPresenters;
+            });
+        }
+        schedulePrune();
+        logger.debug("presenter unregistered");
+    }
+
+    @Override
+    public void contentChanged(@NotNull final NodeState root, @NotNull final CommitInfo info) {
+        final long start = System.nanoTime();
+        try {
+            observeCommit(root, info);
+        } finally {
+            metrics.observation(System.nanoTime() - start);
+        }
+    }
+
+    private void observeCommit(@NotNull final NodeState root, @NotNull final CommitInfo info) {
+        final NodeState before = previousRoot;
+        previousRoot = root;
+        if (Objects.isNull(before)) {
+            scheduleObserveGroups(0);
+            return;
+        }
+        metrics.commitObserved();
+        final long commitDate = info.getDate();
+        if (reconcileExternalChanges && info.isExternal()) {
+            if (hasChanges(before, root)) {
+                reconciliationRequested.set(true);
+            }
+            // reconciliation does not rebuild memberships
+            scheduleObserveGroups(commitDate);
+            return;
+        }
+        try {
+            long budget = overflowDiffBudget;
+            for (final String path : includedPaths) {
+                budget = AuthorizableDiff.compare(path, NodeStateUtils.getNode(before, path), NodeStateUtils.getNode(root, path), excludedNodeNames, this::authorizableChanged, budget);
+                if (budget < 0) {
+                    logger.info("more than {} nodes changed, resyncing presences", overflowDiffBudget);
+                    metrics.overflowed();
+                    observations.clear();
+                    unresolved.clear();
+                    resync();
+                    break;
+                }
+            }
+            for (final Map.Entry<String, Optional<UserInfo>> observation : observations.entrySet()) {
+                final String userId = observation.getKey();
+                updateQueue.offer(observation.getValue().map(userInfo -> PresenceUpdate.present(userInfo, commitDate)).orElseGet(() -> PresenceUpdate.absent(userId, commitDate)));
+            }
+            for (final String userId : unresolved) {
+                updateQueue.offer(PresenceUpdate.resolve(userId));
+            }
+            scheduleObserveGroups(commitDate);
+        } catch (Exception e) {
+            logger.warn("error while observing users", e);
+        } finally {
+            observations.clear();
+            unresolved.clear();
+        }
+    }
+
+    void dispatch(@NotNull final List<PresenceUpdate> updates) {
+        final Set<String> userIds = new HashSet<>();
+        for (final PresenceUpdate update : updates) {
+            if (update.resolve) {
+                userIds.add(update.userId);
+            }
+        }
+        final Map<String, UserInfo> resolved;
+        try {
+            resolved = userResolver.getUsersById(userIds);
+            logger.debug("resolved {} of {} users", resolved.size(), userIds.size());
+        } catch (Exception e) {
+            logger.error("resolving users {} failed", userIds, e);
+            dispatch(updates.stream().filter(update -> !update.resolve).collect(Collectors.toList()), Collections.emptyMap());
+            return;
+        }
+        dispatch(updates, resolved);
+    }
+
+    private void dispatch(@NotNull final List<PresenceUpdate> updates, @NotNull final Map<String, UserInfo> resolved) {
+        try {
+            for (final PresenceUpdate update : updates) {
+                final UserInfo userInfo = withMemberships(update.resolve ? resolved.get(update.userId) : update.userInfo);
+                final Set<Presenter> userPresenters = presenters.getOrDefault(update.userId, Collections.emptySet());
+                for (final Presenter presenter : userPresenters) {
+                    update(presenter, update, userInfo);
+                }
+                for (final Presenter presenter : patternPresenters) {
+                    if (!userPresenters.contains(presenter)) {
+                        update(presenter, update, userInfo);
+                    }
+                }
+                remember(update.userId, userInfo);
+            }
+        } finally {
+            // publish the changes of the batch at once
+            presenceRegistry.flush();
+        }
+        if (knownUserInfosChanged && System.nanoTime() - knownUserInfosSaved >= persistInterval) {
+            saveKnownUserInfos();
+        }
+    }
+
+    private void update(@NotNull final Presenter presenter, @NotNull final PresenceUpdate update, @Nullable final UserInfo userInfo) {
+        if (presenter.update(update.userId, userInfo)) {
+            if (update.commitDate > 0) {
+                metrics.published(update.commitDate);
+            }
+        } else if (Objects.nonNull(userInfo) && presenter.selects(update.userId, userInfo.path)) {
+            metrics.suppressed();
+        }
+    }
+
+    private void authorizableChanged(@NotNull final String path, @NotNull final NodeState before, @NotNull final NodeState after) {
+        final String beforeId = before.getString(REP_AUTHORIZABLE_ID);
+        final String afterId = after.getString(REP_AUTHORIZABLE_ID);
+        if (Objects.nonNull(beforeId) && !beforeId.equals(afterId)) {
+            observe(beforeId, path, MISSING_NODE);
+        }
+        if (Objects.nonNull(afterId) && (!afterId.equals(beforeId) || isRelevantChange(path, before, after))) {
+            observe(afterId, path, after);
+        }
+    }
+
+    // changes of login tokens, profiles, passwords etc. do not affect presence, unless published as service property
+    private boolean isRelevantChange(@NotNull final String path, @NotNull final NodeState before, @NotNull final NodeState after) {
+        return !Objects.equals(before.getName(JCR_PRIMARYTYPE), after.getName(JCR_PRIMARYTYPE))
+            || before.hasProperty(REP_DISABLED) != after.hasProperty(REP_DISABLED)
+            || !presenceProperties.isEmpty() && !presenceProperties.read(before, path).equals(presenceProperties.read(after, path));
+    }
+
+    private void observe(@NotNull final String userId, @NotNull final String path, @NotNull final NodeState node) {
+        final boolean presented = isPresented(userId, path);
+        metrics.authorizableObserved(presented);
+        if (!presented) {
+            return;
+        }
+        final String primaryType = node.getName(JCR_PRIMARYTYPE);
+        if (!node.exists()) {
+            // a user moved within the same commit is observed as deleted and added
+            if (!observations.containsKey(userId) && !unresolved.contains(userId)) {
+                if (evaluateNodeState) {
+                    observations.put(userId, Optional.empty());
+                } else {
+                    unresolved.add(userId);
+                }
+            }
+        } else if (!evaluateNodeState || !AuthorizableDiff.isAuthorizableType(primaryType)) {
+            observations.remove(userId);
+            unresolved.add(userId);
+        } else if (UserConstants.NT_REP_GROUP.equals(primaryType)) {
+            unresolved.remove(userId);
+            observations.put(userId, Optional.empty());
+        } else {
+            final boolean isDisabled = node.hasProperty(REP_DISABLED);
+            final boolean isSystemUser = UserConstants.NT_REP_SYSTEM_USER.equals(primaryType);
+            unresolved.remove(userId);
+            observations.put(userId, Optional.of(new UserInfo(userId, path, isDisabled, isSystemUser, Collections.emptySet(), presenceProperties.read(node, path))));
+        }
+    }
+
+    private boolean isPresented(@NotNull final String userId, @NotNull final String path) {
+        if (presenters.containsKey(userId)) {
+            return true;
+        }
+        for (final Presenter presenter : patternPresenters) {
+            if (presenter.selects(userId, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // publishes the last known state of the presenter's users without waiting for the repository, resolving them
+    // afterwards corrects a diverged state
+    private void publishKnownUserInfos(@NotNull final Presenter presenter, @NotNull final Set<String> userIds) {
+        if (knownUserInfos.isEmpty()) {
+            return;
+        }
+        try {
+            for (final String userId : userIds) {
+                final UserInfo userInfo = knownUserInfos.get(userId);
+                if (Objects.nonNull(userInfo)) {
+                    presenter.update(userId, userInfo);
+                }
+            }
+            if (presenter.hasPatterns()) {
+                for (final UserInfo userInfo : knownUserInfos.values()) {
+                    if (!userIds.contains(userInfo.userId) && presenter.selects(userInfo.userId, userInfo.path)) {
+                        presenter.update(userInfo.userId, userInfo);
+                    }
+                }
+            }
+        } finally {
+            presenceRegistry.flush();
+        }
+    }
+
+    // cheap on DocumentNodeStore, where node states of the same revision are compared by revision only
+    private boolean hasChanges(@NotNull final NodeState before, @NotNull final NodeState after) {
+        for (final String path : includedPaths) {
+            if (!NodeStateUtils.getNode(before, path).equals(NodeStateUtils.getNode(after, path))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // queues the users selected by the presenter by pattern or path as found by a query, and known users no longer found as absent
+    private void findUsers(@NotNull final Presenter presenter) {
+        if (!patternPresenters.contains(presenter)) {
+            return;
+        }
+        try {
+            final Map<String, UserInfo> userInfos = userResolver.findUsers(presenter::selects);
+            for (final UserInfo userInfo : userInfos.values()) {
+                updateQueue.putIfAbsent(PresenceUpdate.present(userInfo, 0));
+            }
+            for (final UserInfo userInfo : knownUserInfos.values()) {
+                if (!userInfos.containsKey(userInfo.userId) && presenter.selects(userInfo.userId, userInfo.path)) {
+                    updateQueue.putIfAbsent(PresenceUpdate.absent(userInfo.userId, 0));
+                }
+            }
+            logger.debug("found {} users selected by presenter", userInfos.size());
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    // reconciles all presented users instead of walking a diff of unpredictable size or after discarded updates,
+    // at most one resync is scheduled at a time
+    private void resync() {
+        reconciliationRequested.set(true);
+        if (resyncScheduled.compareAndSet(false, true)) {
+            try {
+                reconciler.execute(() -> {
+                    resyncScheduled.set(false);
+                    reconcile();
+                });
+            } catch (RejectedExecutionException e) {
+                resyncScheduled.set(false);
+                logger.debug("not resyncing presences, observer deactivated");
+            }
+        }
+    }
+
+    // compares all presented users with the repository and queues updates for them, resolving users by ID in
+    // parallel batches or, if presenters select users by pattern or path, with one query reading all users
+    private void reconcile() {
+        if (!reconciliationRequested.getAndSet(false)) {
+            return;
+        }
+        try {
+            final Set<String> userIds = new HashSet<>(presenters.keySet());
+            userIds.addAll(knownUserInfos.keySet());
+            boolean query = false;
+            for (final Presenter presenter : patternPresenters) {
+                final Collection<String> selectedUserIds = presenter.getSelectedUserIds();
+                if (Objects.isNull(selectedUserIds)) {
+                    query = true;
+                } else {
+                    userIds.addAll(selectedUserIds);
+                }
+            }
+            final Map<String, UserInfo> userInfos = query ? userResolver.findUsers(this::isPresented) : userResolver.getUsersById(userIds);
+            userIds.addAll(userInfos.keySet());
+            for (final String userId : userIds) {
+                final UserInfo userInfo = userInfos.get(userId);
+                // the query may have run before pending updates were observed
+                updateQueue.putIfAbsent(Objects.nonNull(userInfo) ? PresenceUpdate.present(userInfo, 0) : PresenceUpdate.absent(userId, 0));
+            }
+            metrics.reconciled();
+            logger.debug("reconciled {} users", userIds.size());
+        } catch (Exception e) {
+            reconciliationRequested.set(true);
+            logger.error("reconciling presences failed", e);
+            if (!reconcileExternalChanges && !reconciler.isShutdown()) {
+                // retried periodically otherwise
+                reconciler.schedule(this::reconcile, reconciliationInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // groups are observed off the observation thread, the first walk covers all groups, at most one observation
+    // is scheduled at a time
+    private void scheduleObserveGroups(final long commitDate) {
+        if (Objects.isNull(membershipCache)) {
+            return;
+        }
+        groupsCommitDate = commitDate;
+        if (groupsScheduled.compareAndSet(false, true)) {
+            try {
+                reconciler.execute(() -> {
+                    groupsScheduled.set(false);
+                    observeGroups();
+                });
+            } catch (RejectedExecutionException e) {
+                groupsScheduled.set(false);
+                logger.debug("not observing groups, observer deactivated");
+            }
+        }
+    }
+
+    // updates group memberships up to the last observed root and queues updates for known users whose memberships
+    // changed, memberships are applied on dispatch, so users with a pending update (e.g. disabled or removed
+    // meanwhile) are skipped
+    private void observeGroups() {
+        final GroupMembershipCache membershipCache = this.membershipCache;
+        final NodeState before = groupsRoot;
+        final NodeState after = previousRoot;
+        if (Objects.isNull(membershipCache) || Objects.isNull(after)) {
+            return;
+        }
+        try {
+            for (final String path : groupPaths) {
+                AuthorizableDiff.compare(path, NodeStateUtils.getNode(before, path), NodeStateUtils.getNode(after, path), excludedNodeNames, membershipCache::groupChanged);
+            }
+            groupsRoot = after;
+            final long commitDate = groupsCommitDate;
+            for (final String contentId : membershipCache.commit()) {
+                final String userId = userIdsByContentId.get(contentId);
+                final UserInfo userInfo = Objects.isNull(userId) ? null : knownUserInfos.get(userId);
+                if (Objects.nonNull(userInfo)) {
+                    updateQueue.offerIfAbsent(PresenceUpdate.present(userInfo, commitDate));
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("error while observing groups", e);
+        }
+    }
+
+    @Nullable
+    private UserInfo withMemberships(@Nullable final UserInfo userInfo) {
+        final GroupMembershipCache membershipCache = this.membershipCache;
+        if (Objects.isNull(userInfo) || Objects.isNull(membershipCache)) {
+            return userInfo;
+        }
+        return userInfo.withMemberOf(membershipCache.memberOf(contentId(userInfo)));
+    }
+
+    // the jcr:uuid of the user's node, derived from the user ID if the node is not available
+    @NotNull
+    private String contentId(@NotNull final UserInfo userInfo) {
+        final NodeState root = previousRoot;
+        final String contentId = Objects.isNull(root) ? null : NodeStateUtils.getNode(root, userInfo.path).getString(JCR_UUID);
+        return Objects.nonNull(contentId) ? contentId : GroupMembershipCache.contentId(userInfo.userId);
+    }
+
+    // delayed, so users are still persisted on shutdown, when presenters are unregistered before the observer
+    private void schedulePrune() {
+        if (pruneScheduled.compareAndSet(false, true)) {
+            try {
+                reconciler.schedule(() -> {
+                    pruneScheduled.set(false);
+                    pruneKnownUserInfos();
+                }, PRUNE_DELAY_SECONDS, TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                pruneScheduled.set(false);
+            }
+        }
+    }
+
+    // forgets known users which are not presented anymore
+    private void pruneKnownUserInfos() {
+        int pruned = 0;
+        synchronized (knownUserInfos) {
+            for (final UserInfo userInfo : knownUserInfos.values()) {
+                if (!isPresented(userInfo.userId, userInfo.path)) {
+                    knownUserInfos.remove(userInfo.userId);
+                    if (Objects.nonNull(membershipCache)) {
+                        unindexContentId(userInfo.userId);
+                    }
+                    pruned++;
+                }
+            }
+        }
+        if (pruned > 0) {
+            knownUserInfosChanged = true;
+            logger.debug("forgot {} users not presented anymore", pruned);
+        }
+    }
+
+    // synchronized with pruning
+    private void remember(@NotNull final String userId, @Nullable final UserInfo userInfo) {
+        synchronized (knownUserInfos) {
+            final UserInfo previous = Objects.isNull(userInfo) ? knownUserInfos.remove(userId) : knownUserInfos.put(userId, userInfo);
+            // a moved user has to be persisted with its new path, which pattern presenters may select by
+            if (!Objects.equals(previous, userInfo) || Objects.nonNull(previous) && Objects.nonNull(userInfo) && !previous.path.equals(userInfo.path)) {
+                knownUserInfosChanged = true;
+            }
+            if (Objects.nonNull(membershipCache)) {
+                if (Objects.isNull(userInfo)) {
+                    unindexContentId(userId);
+                } else {
+                    // persisted users are indexed by derived content IDs until resolved
+                    indexContentId(userInfo);
+                }
+            }
+        }
+    }
+
+    private void indexContentId(@NotNull final UserInfo userInfo) {
+        final String contentId = contentId(userInfo);
+        final String previous = contentIdsByUserId.put(userInfo.userId, contentId);
+        if (Objects.nonNull(previous) && !previous.equals(contentId)) {
+            userIdsByContentId.remove(previous, userInfo.userId);
+        }
+        userIdsByContentId.put(contentId, userInfo.userId);
+    }
+
+    private void unindexContentId(@NotNull final String userId) {
+        final String contentId = contentIdsByUserId.remove(userId);
+        if (Objects.nonNull(contentId)) {
+            userIdsByContentId.remove(contentId, userId);
+        }
+    }
+
+    private void loadKnownUserInfos() {
+        if (Objects.isNull(snapshotFile)) {
+            return;
+        }
+        try {
+            final List<UserInfo> snapshot = snapshotFile.load();
+            for (final UserInfo userInfo : snapshot) {
+                knownUserInfos.put(userInfo.userId, userInfo);
+                if (Objects.nonNull(membershipCache)) {
+                    indexContentId(userInfo);
+                }
+            }
+            logger.info("loaded {} persisted presences", snapshot.size());
+        } catch (IOException e) {
+            logger.warn("loading persisted presences failed, presences are resolved from the repository", e);
+        }
+    }
+
+    private void saveKnownUserInfos() {
+        if (Objects.isNull(snapshotFile) || !knownUserInfosChanged) {
+            return;
+        }
+        knownUserInfosChanged = false;
+        knownUserInfosSaved = System.nanoTime();
+        try {
+            snapshotFile.save(knownUserInfos.values());
+        } catch (IOException e) {
+            knownUserInfosChanged = true;
+            logger.warn("persisting presences failed", e);
+        }
+    }
+
+    @Nullable
+    private static PresenceSnapshotFile snapshotFile(@NotNull final BundleContext bundleContext) {
+        final File file = bundleContext.getDataFile("presences.snapshot");
+        return Objects.isNull(file) ? null : new PresenceSnapshotFile(file);
+    }
+
+    private ServiceRegistration<DynamicMBean> registerMetricsMBean(@NotNull final BundleContext bundleContext, @NotNull final PresenceMetrics metrics) {
+        try {
+            final Dictionary<String, Object> properties = new Hashtable<>();
+            properties.put("jmx.objectname", UserPresenceMetricsMBean.OBJECT_NAME);
+            final DynamicMBean mbean = new StandardMBean(metrics, UserPresenceMetricsMBean.class);
+            return bundleContext.registerService(DynamicMBean.class, mbean, properties);
+        } catch (NotCompliantMBeanException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // drops paths contained in other paths
+    private static List<String> includedPaths(@NotNull final String[] paths) {
+        final List<String> includedPaths = new ArrayList<>();
+        for (final String path : paths) {
+            boolean contained = false;
+            for (final String other : paths) {
+                if (PathUtils.isAncestor(other, path) || (other.equals(path) && includedPaths.contains(path))) {
+                    contained = true;
+                    break;
+                }
+            }
+            if (!contained) {
+                includedPaths.add(path);
+            }
+        }
+        return includedPaths;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(
+    name = "Apache Sling JCR Presence “User Presence Observer”",
+    description = "Observes the users tree once for all user presenters."
+)
+@interface UserPresenceObserverConfiguration {
+
+    @AttributeDefinition(
+        name = "evaluate node state",
+        description = "Derive existence, disabled and system user state of users from the observed node state. A repository session is only used when the node state is ambiguous. If disabled, every observed change is resolved with a repository session."
+    )
+    boolean evaluateNodeState() default true;
+
+    @AttributeDefinition(
+        name = "included paths",
+        description = "Paths of observed users, e.g. /home/users/system. Changes to users outside of these paths are not observed."
+    )
+    String[] includedPaths() default {"/home/users"};
+
+    @AttributeDefinition(
+        name = "excluded node names",
+        description = "Names of folders whose subtrees are never walked when observing users. Authorizables are observed whatever their name, their subtrees (e.g. login tokens) are never walked."
+    )
+    String[] excludedNodeNames() default {};
+
+    @AttributeDefinition(
+        name = "service properties",
+        description = "Extra service properties of presences as name=relPath, read from the observed user node, e.g. principalName=rep:principalName or flagged=profile/flagged. The relative path :intermediatePath publishes the path of the user below /home/users, e.g. system/sling."
+    )
+    String[] serviceProperties() default {};
+
+    @AttributeDefinition(
+        name = "member of groups",
+        description = "IDs of groups whose (declared or inherited) members are published with service property memberOf. Memberships are maintained from observed group node states."
+    )
+    String[] memberOfGroups() default {};
+
+    @AttributeDefinition(
+        name = "group paths",
+        description = "Paths of observed groups, only used if member of groups are configured."
+    )
+    String[] groupPaths() default {"/home/groups"};
+
+    @AttributeDefinition(
+        name = "resolver parallelism",
+        description = "Maximum number of repository sessions resolving users in parallel, e.g. when presenters of many users are activated. Sessions are reused. Virtual threads are used on Java 21 and later."
+    )
+    int resolverParallelism() default 4;
+
+    @AttributeDefinition(
+        name = "resolver batch size",
+        description = "Number of users resolved at a time by one session. Users pending resolution are split into batches which are resolved in parallel and published at once."
+    )
+    int resolverBatchSize() default 250;
+
+    @AttributeDefinition(
+        name = "update queue capacity",
+        description = "Maximum number of users with pending presence updates. Updates are processed asynchronously, off the repository observation thread, and pending updates for the same user are merged."
+    )
+    int updateQueueCapacity() default 10000;
+
+    @AttributeDefinition(
+        name = "update queue overflow policy",
+        description = "What to do with an update for another user when the update queue is full: BLOCK the observation thread until there is space (backpressure), which for this observer is the thread committing to the repository, or DISCARD the update and resync all presences with the repository in the background."
+    )
+    PresenceUpdateQueue.OverflowPolicy updateQueueOverflowPolicy() default PresenceUpdateQueue.OverflowPolicy.BLOCK;
+
+    @AttributeDefinition(
+        name = "coalescing quiet window",
+        description = "Time in milliseconds without further changes to a user before its pending presence update is processed. Bursts of changes to the same user are collapsed into a single update carrying the final state."
+    )
+    long coalescingQuietWindow() default 50;
+
+    @AttributeDefinition(
+        name = "coalescing max delay",
+        description = "Maximum time in milliseconds a presence update is delayed by coalescing, even if the user keeps changing."
+    )
+    long coalescingMaxDelay() default 500;
+
+    @AttributeDefinition(
+        name = "persist presences",
+        description = "Persist the last known state of presented users in the bundle data area and publish presences from it on startup, before they are verified against the repository in the background."
+    )
+    boolean persistPresences() default true;
+
+    @AttributeDefinition(
+        name = "reconcile external changes",
+        description = "Do not walk external (cluster) commits. A changed users tree only marks all presences dirty, they are reconciled with the repository at most once per reconciliation interval."
+    )
+    boolean reconcileExternalChanges() default false;
+
+    @AttributeDefinition(
+        name = "reconciliation interval",
+        description = "Minimum time in milliseconds between reconciliations of presences after external changes, and delay before retrying a failed resync."
+    )
+    long reconciliationInterval() default 10000;
+
+    @AttributeDefinition(
+        name = "overflow diff budget",
+        description = "Maximum number of nodes walked when observing a single commit. Larger changes are not walked further but trigger a resync of all presences with the repository. 0 for no limit."
+    )
+    long overflowDiffBudget() default 100000;
+
+    @AttributeDefinition(
+        name = "persist interval",
+        description = "Minimum time in milliseconds between writes of the persisted presences. They are also written on deactivation."
+    )
+    long persistInterval() default 10000;
+
+}
@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_AUTHORIZABLE_ID;
+
+/**
+ * Resolves users with a repository session, for states which cannot be
+ * derived from observed node states.
+ * <p>
+ * Large numbers of users are partitioned into batches which are resolved in
+ * parallel, by virtual threads where available. Sessions are reused across
+ * batches and calls, at most one per worker.
+ */
+final class UserResolver {
+
+    private static final String RESOLVER_THREAD_NAME = "sling-jcr-presence-resolver-";
+
+    private final SlingRepository slingRepository;
+
+    private final PresenceProperties presenceProperties;
+
+    private final PresenceMetrics metrics;
+
+    private final int parallelism;
+
+    private final int batchSize;
+
+    // idle sessions, refreshed before reuse
+    private final BlockingQueue<Session> sessions;
+
+    // null if users are resolved by the calling thread only
+    private final ExecutorService executor;
+
+    private volatile boolean closed;
+
+    private final Logger logger = LoggerFactory.getLogger(UserResolver.class);
+
+    UserResolver(@NotNull final SlingRepository slingRepository, @NotNull final PresenceProperties presenceProperties, @NotNull final PresenceMetrics metrics, final int parallelism, final int batchSize) {
+        this(slingRepository, presenceProperties, metrics, parallelism, batchSize, true);
+    }
+
+    /**
+     * @param virtualThreads whether to resolve with virtual threads if available
+     */
+    UserResolver(@NotNull final SlingRepository slingRepository, @NotNull final PresenceProperties presenceProperties, @NotNull final PresenceMetrics metrics, final int parallelism, final int batchSize, final boolean virtualThreads) {
+        this.slingRepository = slingRepository;
+        this.presenceProperties = presenceProperties;
+        this.metrics = metrics;
+        this.parallelism = Math.max(1, parallelism);
+        this.batchSize = Math.max(1, batchSize);
+        this.sessions = new LinkedBlockingQueue<>(this.parallelism);
+        this.executor = this.parallelism > 1 ? newExecutor(this.parallelism, virtualThreads) : null;
+    }
+
+    @Nullable
+    UserInfo getUserById(@NotNull final String userId) throws Exception {
+        return getUsersById(Collections.singleton(userId)).get(userId);
+    }
+
+    /**
+     * Resolves all given users in batches, in parallel if there is more than
+     * one batch.
+     *
+     * @return the present users by ID, absent users are not contained
+     */
+    @NotNull
+    Map<String, UserInfo> getUsersById(@NotNull final Collection<String> userIds) throws Exception {
+        final Map<String, UserInfo> userInfos = new HashMap<>();
+        if (userIds.isEmpty()) {
+            return userInfos;
+        }
+        final Queue<List<String>> batches = batches(userIds);
+        final int workers = Objects.isNull(executor) ? 1 : Math.min(parallelism, batches.size());
+        if (workers == 1) {
+            return resolveBatches(batches);
+        }
+        final List<Future<Map<String, UserInfo>>> futures = new ArrayList<>(workers);
+        try {
+            for (int worker = 0; worker < workers; worker++) {
+                futures.add(executor.submit(() -> resolveBatches(batches)));
+            }
+            for (final Future<Map<String, UserInfo>> future : futures) {
+                userInfos.putAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            // stops the remaining workers after a failure, no-op otherwise
+            batches.clear();
+            for (final Future<Map<String, UserInfo>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return userInfos;
+    }
+
+    /**
+     * Resolves all selected users with a single query, reading all users.
+     *
+     * @param selector selects users by ID and path
+     * @return the selected users by ID
+     */
+    @NotNull
+    Map<String, UserInfo> findUsers(@NotNull final BiPredicate<String, String> selector) throws Exception {
+        final Map<String, UserInfo> userInfos = new LinkedHashMap<>();
+        final Session session = acquire();
+        boolean reusable = false;
+        try {
+            final UserManager userManager = AccessControlUtil.getUserManager(session);
+            final Iterator<Authorizable> authorizables = userManager.findAuthorizables(REP_AUTHORIZABLE_ID, null, UserManager.SEARCH_TYPE_USER);
+            while (authorizables.hasNext()) {
+                // every user read by the query counts as a lookup, selected or not
+                final long start = System.nanoTime();
+                final Authorizable authorizable = authorizables.next();
+                final UserInfo userInfo = selector.test(authorizable.getID(), authorizable.getPath()) ? userInfo(authorizable) : null;
+                metrics.lookup(System.nanoTime() - start);
+                if (Objects.nonNull(userInfo)) {
+                    userInfos.put(userInfo.userId, userInfo);
+                }
+            }
+            reusable = true;
+        } finally {
+            release(session, reusable);
+        }
+        return userInfos;
+    }
+
+    /**
+     * Stops the workers and logs out all idle sessions.
+     */
+    void close() {
+        closed = true;
+        if (Objects.nonNull(executor)) {
+            executor.shutdownNow();
+        }
+        logoutIdleSessions();
+    }
+
+    @NotNull
+    private Queue<List<String>> batches(@NotNull final Collection<String> userIds) {
+        final Queue<List<String>> batches = new ConcurrentLinkedQueue<>();
+        List<String> batch = new ArrayList<>(Math.min(batchSize, userIds.size()));
+        for (final String userId : userIds) {
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+            batch.add(userId);
+        }
+        batches.add(batch);
+        return batches;
+    }
+
+    // takes batches until none is left, with a single session
+    @NotNull
+    private Map<String, UserInfo> resolveBatches(@NotNull final Queue<List<String>> batches) throws Exception {
+        final Map<String, UserInfo> userInfos = new HashMap<>();
+        final Session session = acquire();
+        boolean reusable = false;
+        try {
+            final UserManager userManager = AccessControlUtil.getUserManager(session);
+            List<String> batch;
+            while (Objects.nonNull(batch = batches.poll())) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("resolving users interrupted");
+                }
+                for (final String userId : batch) {
+                    final long start = System.nanoTime();
+                    final UserInfo userInfo = userInfo(userManager.getAuthorizable(userId));
+                    metrics.lookup(System.nanoTime() - start);
+                    if (Objects.nonNull(userInfo)) {
+                        userInfos.put(userId, userInfo);
+                    }
+                }
+            }
+            reusable = true;
+        } finally {
+            release(session, reusable);
+        }
+        return userInfos;
+    }
+
+    @NotNull
+    private Session acquire() throws RepositoryException {
+        Session session;
+        while (Objects.nonNull(session = sessions.poll())) {
+            if (session.isLive()) {
+                try {
+                    // see the latest persisted state
+                    session.refresh(false);
+                    return session;
+                } catch (RepositoryException | RuntimeException e) {
+                    logger.debug("refreshing idle session failed, logging it out", e);
+                }
+            }
+            session.logout();
+        }
+        return login();
+    }
+
+    // keeps the session for reuse, unless it failed or enough sessions are idle
+    private void release(@NotNull final Session session, final boolean reusable) {
+        if (reusable && !closed && session.isLive() && sessions.offer(session)) {
+            if (closed) {
+                logoutIdleSessions();
+            }
+            return;
+        }
+        session.logout();
+    }
+
+    private void logoutIdleSessions() {
+        Session session;
+        while (Objects.nonNull(session = sessions.poll())) {
+            try {
+                session.logout();
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    private Session login() throws RepositoryException {
+        final long start = System.nanoTime();
+        final Session session = slingRepository.loginAdministrative(null);
+        metrics.login(System.nanoTime() - start);
+        return session;
+    }
+
+    @Nullable
+    private UserInfo userInfo(@Nullable final Authorizable authorizable) throws Exception {
+        if (Objects.isNull(authorizable) || authorizable.isGroup()) {
+            return null;
+        } else {
+            final User user = (User) authorizable;
+            return new UserInfo(user.getID(), user.getPath(), user.isDisabled(), user.isSystemUser(), Collections.emptySet(), presenceProperties.read(user));
+        }
+    }
+
+    // virtual threads on Java 21+ (looked up reflectively to keep running on Java 8), a fixed pool otherwise
+    @NotNull
+    private ExecutorService newExecutor(final int parallelism, final boolean virtualThreads) {
+        if (!virtualThreads) {
+            return newThreadPool(parallelism);
+        }
+        try {
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, RESOLVER_THREAD_NAME, 0L);
+            final ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            final ExecutorService executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+            logger.debug("resolving users with virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("resolving users with a pool of {} threads", parallelism);
+        }
+        return newThreadPool(parallelism);
+    }
+
+    @NotNull
+    private static ExecutorService newThreadPool(final int parallelism) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(parallelism, runnable -> {
+            final Thread thread = new Thread(runnable, RESOLVER_THREAD_NAME + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+}
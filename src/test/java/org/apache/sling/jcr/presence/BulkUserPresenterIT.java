@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Configuration;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerClass;
+
+import static org.ops4j.pax.exam.CoreOptions.options;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.factoryConfiguration;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.newConfiguration;
+
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerClass.class)
+public class BulkUserPresenterIT extends JcrPresenceTestSupport {
+
+    protected static final String FACTORY_PID = "org.apache.sling.jcr.presence.internal.BulkUserPresenter";
+
+    @Configuration
+    public Option[] configuration() {
+        return options(
+            baseConfiguration(),
+            // resolve every user in its own batch, in parallel
+            newConfiguration("org.apache.sling.jcr.presence.internal.UserPresenceObserver")
+                .put("resolverParallelism", 2)
+                .put("resolverBatchSize", 1)
+                .asOption(),
+            factoryConfiguration(FACTORY_PID)
+                .put("userIds", new String[]{"sling-readall"})
+                .put("userIdPatterns", new String[]{"bulk-*"})
+                .put("paths", new String[]{"/home/users/system/bulk"})
+                .asOption()
+        );
+    }
+
+    @Test
+    public void testBulkUserPresence() throws Exception {
+        // listed by ID
+        awaitUserPresences("(userId=sling-readall)", 1);
+
+        // selected by pattern
+        createSystemUser("bulk-a", "system/test");
+        createSystemUser("bulk-b", "system/test");
+        awaitUserPresences("(userId=bulk-*)", 2);
+
+        // selected by path
+        createSystemUser("other", "system/bulk");
+        awaitUserPresences("(userId=other)", 1);
+
+        // not selected
+        createSystemUser("unselected", "system/test");
+
+        removeUser("bulk-a");
+        awaitUserPresences("(userId=bulk-*)", 1);
+
+        removeUser("other");
+        awaitUserPresences("(userId=other)", 0);
+        awaitUserPresences("(userId=unselected)", 0);
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence;
+
+import java.util.Collection;
+
+import javax.jcr.Session;
+import javax.management.DynamicMBean;
+
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Configuration;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerClass;
+import org.osgi.framework.ServiceReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.with;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.ops4j.pax.exam.CoreOptions.options;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.factoryConfiguration;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.newConfiguration;
+
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerClass.class)
+public class ExternalChangesIT extends JcrPresenceTestSupport {
+
+    protected static final String FACTORY_PID = "org.apache.sling.jcr.presence.internal.UserPresenter";
+
+    private static final String OBSERVER_FILTER = "(component.name=org.apache.sling.jcr.presence.internal.UserPresenceObserver)";
+
+    private static final String METRICS_FILTER = "(jmx.objectname=org.apache.sling:type=JcrPresence,name=UserPresenceMetrics)";
+
+    private static final String USER_ID = "external-a";
+
+    @Configuration
+    public Option[] configuration() {
+        return options(
+            baseConfiguration(),
+            newConfiguration("org.apache.sling.jcr.presence.internal.UserPresenceObserver")
+                .put("reconcileExternalChanges", true)
+                .put("reconciliationInterval", 100L)
+                .asOption(),
+            factoryConfiguration(FACTORY_PID)
+                .put("userId", USER_ID)
+                .asOption()
+        );
+    }
+
+    @Test
+    public void testExternalChangesReconciled() throws Exception {
+        createSystemUser(USER_ID, "system/external");
+        awaitUserPresences("(userId=external-a)", 1);
+
+        // an external commit removing the user, which is still present in the repository
+        final NodeStore nodeStore = service(NodeStore.class, null);
+        final NodeBuilder builder = nodeStore.getRoot().builder();
+        child(builder, userPath()).remove();
+        final Observer observer = service(Observer.class, OBSERVER_FILTER);
+        final long reconciliations = reconciliationCount();
+        observer.contentChanged(builder.getNodeState(), CommitInfo.EMPTY_EXTERNAL);
+
+        // the commit is not walked, the presence is reconciled with the repository
+        with().
+            pollInterval(100, MILLISECONDS).
+            await().
+            atMost(10, SECONDS).
+            until(() -> reconciliationCount() > reconciliations);
+        assertThat(countUserPresences("(userId=external-a)"), is(1));
+
+        // back to the repository state, local commits are walked again
+        observer.contentChanged(nodeStore.getRoot(), CommitInfo.EMPTY_EXTERNAL);
+        removeUser(USER_ID);
+        awaitUserPresences("(userId=external-a)", 0);
+    }
+
+    @NotNull
+    private String userPath() throws Exception {
+        final Session session = slingRepository.loginAdministrative(null);
+        try {
+            return AccessControlUtil.getUserManager(session).getAuthorizable(USER_ID).getPath();
+        } finally {
+            session.logout();
+        }
+    }
+
+    @NotNull
+    private static NodeBuilder child(@NotNull final NodeBuilder builder, @NotNull final String path) {
+        NodeBuilder child = builder;
+        for (final String name : path.substring(1).split("/")) {
+            child = child.getChildNode(name);
+        }
+        return child;
+    }
+
+    @NotNull
+    private <T> T service(@NotNull final Class<T> type, @Nullable final String filter) throws Exception {
+        final Collection<ServiceReference<T>> references = bundleContext.getServiceReferences(type, filter);
+        assertThat(references.size(), is(1));
+        return bundleContext.getService(references.iterator().next());
+    }
+
+    private long reconciliationCount() throws Exception {
+        final Collection<ServiceReference<DynamicMBean>> references = bundleContext.getServiceReferences(DynamicMBean.class, METRICS_FILTER);
+        assertThat(references.size(), is(1));
+        final ServiceReference<DynamicMBean> reference = references.iterator().next();
+        final DynamicMBean mbean = bundleContext.getService(reference);
+        try {
+            return (Long) mbean.getAttribute("ReconciliationCount");
+        } finally {
+            bundleContext.ungetService(reference);
+        }
+    }
+
+}
@@ -18,16 +18,26 @@
  */
 package org.apache.sling.jcr.presence;
 
+import java.util.Collection;
+
 import javax.inject.Inject;
+import javax.jcr.Session;
 
+import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.testing.paxexam.TestSupport;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.ops4j.pax.exam.Option;
 import org.ops4j.pax.exam.options.ModifiableCompositeOption;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.sling.testing.paxexam.SlingOptions.awaitility;
 import static org.apache.sling.testing.paxexam.SlingOptions.slingQuickstartOakTar;
+import static org.awaitility.Awaitility.with;
 import static org.ops4j.pax.exam.CoreOptions.composite;
 import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.factoryConfiguration;
 import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.newConfiguration;
@@ -65,4 +75,40 @@ public abstract class JcrPresenceTestSupport extends TestSupport {
         return slingQuickstartOakTar(workingDirectory, httpPort);
     }
 
+    protected void awaitUserPresences(@NotNull final String filter, final int count) {
+        with().
+            pollInterval(1, SECONDS).
+            then().
+            await().
+            alias(String.format("counting user presences %s", filter)).
+            atMost(10, SECONDS).
+            until(() -> countUserPresences(filter) == count);
+    }
+
+    protected int countUserPresences(@NotNull final String filter) throws Exception {
+        final Collection<ServiceReference<UserPresence>> serviceReferences = bundleContext.getServiceReferences(UserPresence.class, filter);
+        return serviceReferences.size();
+    }
+
+    protected void createSystemUser(@NotNull final String userId, @Nullable final String intermediatePath) throws Exception {
+        final Session session = slingRepository.loginAdministrative(null);
+        try {
+            AccessControlUtil.getUserManager(session).createSystemUser(userId, intermediatePath);
+            session.save();
+        } finally {
+            session.logout();
+        }
+    }
+
+    protected void removeUser(@NotNull final String userId) throws Exception {
+        final Session session = slingRepository.loginAdministrative(null);
+        try {
+            final Authorizable authorizable = AccessControlUtil.getUserManager(session).getAuthorizable(userId);
+            authorizable.remove();
+            session.save();
+        } finally {
+            session.logout();
+        }
+    }
+
 }
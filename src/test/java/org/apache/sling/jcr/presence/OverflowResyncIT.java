@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence;
+
+import java.util.Collection;
+
+import javax.jcr.Session;
+import javax.management.DynamicMBean;
+
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Configuration;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerClass;
+import org.osgi.framework.ServiceReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.ops4j.pax.exam.CoreOptions.options;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.factoryConfiguration;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.newConfiguration;
+
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerClass.class)
+public class OverflowResyncIT extends JcrPresenceTestSupport {
+
+    protected static final String FACTORY_PID = "org.apache.sling.jcr.presence.internal.UserPresenter";
+
+    private static final String METRICS_FILTER = "(jmx.objectname=org.apache.sling:type=JcrPresence,name=UserPresenceMetrics)";
+
+    private static final String[] USER_IDS = {"overflow-a", "overflow-b"};
+
+    @Configuration
+    public Option[] configuration() {
+        return options(
+            baseConfiguration(),
+            // every commit touching users exceeds the budget and is resynced
+            newConfiguration("org.apache.sling.jcr.presence.internal.UserPresenceObserver")
+                .put("overflowDiffBudget", 1L)
+                .asOption(),
+            factoryConfiguration(FACTORY_PID)
+                .put("userId", USER_IDS[0])
+                .asOption(),
+            factoryConfiguration(FACTORY_PID)
+                .put("userId", USER_IDS[1])
+                .asOption()
+        );
+    }
+
+    @Test
+    public void testResyncAfterOverflow() throws Exception {
+        final long overflows = overflowCount();
+        final Session session = slingRepository.loginAdministrative(null);
+        try {
+            final UserManager userManager = AccessControlUtil.getUserManager(session);
+            for (final String userId : USER_IDS) {
+                userManager.createSystemUser(userId, "system/overflow");
+            }
+            session.save();
+            awaitUserPresences("(&(userId=overflow-*)(disabled=false))", 2);
+            assertThat(overflowCount(), greaterThan(overflows));
+
+            for (final String userId : USER_IDS) {
+                ((User) userManager.getAuthorizable(userId)).disable("overflow");
+            }
+            session.save();
+            awaitUserPresences("(&(userId=overflow-*)(disabled=true))", 2);
+
+            for (final String userId : USER_IDS) {
+                userManager.getAuthorizable(userId).remove();
+            }
+            session.save();
+            awaitUserPresences("(userId=overflow-*)", 0);
+        } finally {
+            session.logout();
+        }
+    }
+
+    private long overflowCount() throws Exception {
+        final Collection<ServiceReference<DynamicMBean>> references = bundleContext.getServiceReferences(DynamicMBean.class, METRICS_FILTER);
+        assertThat(references.size(), is(1));
+        final ServiceReference<DynamicMBean> reference = references.iterator().next();
+        final DynamicMBean mbean = bundleContext.getService(reference);
+        try {
+            return (Long) mbean.getAttribute("OverflowCount");
+        } finally {
+            bundleContext.ungetService(reference);
+        }
+    }
+
+}
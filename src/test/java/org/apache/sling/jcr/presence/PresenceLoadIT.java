@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Session;
+import javax.management.DynamicMBean;
+
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Configuration;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerClass;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.with;
+import static org.ops4j.pax.exam.CoreOptions.systemProperty;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.factoryConfiguration;
+
+/**
+ * Measures how fast presences converge while users are created, disabled and
+ * removed concurrently. Only run with profile {@code load-test}, which writes
+ * the results as JSON to {@code target/presence-load-results.json}.
+ * <p>
+ * Sizes are configured with system properties
+ * {@code sling.jcr.presence.load.users}, {@code .presences}, {@code .threads}
+ * and {@code .timeout} (seconds).
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerClass.class)
+public class PresenceLoadIT extends JcrPresenceTestSupport {
+
+    protected static final String FACTORY_PID = "org.apache.sling.jcr.presence.internal.UserPresenter";
+
+    private static final String PREFIX = "sling.jcr.presence.load.";
+
+    private static final String USERS = PREFIX + "users";
+
+    private static final String PRESENCES = PREFIX + "presences";
+
+    private static final String THREADS = PREFIX + "threads";
+
+    private static final String TIMEOUT = PREFIX + "timeout";
+
+    private static final String RESULTS = PREFIX + "results";
+
+    private static final String METRICS_FILTER = "(jmx.objectname=org.apache.sling:type=JcrPresence,name=UserPresenceMetrics)";
+
+    private interface Change {
+
+        void apply(@NotNull UserManager userManager, @NotNull String userId) throws Exception;
+
+    }
+
+    // records the time of the last service event per user
+    private static final class ServiceEventRecorder implements ServiceListener {
+
+        final Map<String, Long> eventTimes = new ConcurrentHashMap<>();
+
+        final AtomicLong events = new AtomicLong();
+
+        @Override
+        public void serviceChanged(final ServiceEvent event) {
+            final long time = System.nanoTime();
+            final Object userId = event.getServiceReference().getProperty("userId");
+            if (userId instanceof String) {
+                eventTimes.put((String) userId, time);
+                events.incrementAndGet();
+            }
+        }
+
+        void reset() {
+            eventTimes.clear();
+            events.set(0);
+        }
+
+    }
+
+    @Configuration
+    public Option[] configuration() {
+        final int users = Integer.getInteger(USERS, 2000);
+        final int presences = Math.min(Integer.getInteger(PRESENCES, 200), users);
+        final List<Option> options = new ArrayList<>();
+        options.add(baseConfiguration());
+        // the test runs in the forked container
+        options.add(systemProperty(USERS).value(Integer.toString(users)));
+        options.add(systemProperty(PRESENCES).value(Integer.toString(presences)));
+        options.add(systemProperty(THREADS).value(Integer.toString(Integer.getInteger(THREADS, 8))));
+        options.add(systemProperty(TIMEOUT).value(Integer.toString(Integer.getInteger(TIMEOUT, 300))));
+        options.add(systemProperty(RESULTS).value(new File(System.getProperty(RESULTS, "target/presence-load-results.json")).getAbsolutePath()));
+        for (int index = 0; index < presences; index++) {
+            options.add(factoryConfiguration(FACTORY_PID).put("userId", userId(index)).asOption());
+        }
+        return options.toArray(new Option[0]);
+    }
+
+    @Test
+    public void testConvergenceUnderChurn() throws Exception {
+        final int users = Integer.getInteger(USERS);
+        final int presences = Integer.getInteger(PRESENCES);
+        final int threads = Integer.getInteger(THREADS);
+        final Map<String, Object> results = new LinkedHashMap<>();
+        results.put("users", users);
+        results.put("presences", presences);
+        results.put("threads", threads);
+        final ServiceEventRecorder recorder = new ServiceEventRecorder();
+        bundleContext.addServiceListener(recorder, "(objectClass=" + UserPresence.class.getName() + ")");
+        try {
+            results.put("create", runPhase(recorder, (userManager, userId) -> userManager.createSystemUser(userId, "system/load"), "(&(userId=load-user-*)(disabled=false))", presences));
+            results.put("disable", runPhase(recorder, (userManager, userId) -> ((User) userManager.getAuthorizable(userId)).disable("load test"), "(&(userId=load-user-*)(disabled=true))", presences));
+            results.put("remove", runPhase(recorder, (userManager, userId) -> userManager.getAuthorizable(userId).remove(), "(userId=load-user-*)", 0));
+        } finally {
+            bundleContext.removeServiceListener(recorder);
+        }
+        results.put("observer", observerMetrics());
+        writeResults(new File(System.getProperty(RESULTS)), results);
+    }
+
+    // applies the change to all users concurrently, a commit per user, and waits until presences converged
+    @NotNull
+    private Map<String, Object> runPhase(@NotNull final ServiceEventRecorder recorder, @NotNull final Change change, @NotNull final String filter, final int expected) throws Exception {
+        final int users = Integer.getInteger(USERS);
+        final int presences = Integer.getInteger(PRESENCES);
+        final int threads = Integer.getInteger(THREADS);
+        recorder.reset();
+        final Map<String, Long> commitTimes = new ConcurrentHashMap<>();
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                final int first = thread;
+                futures.add(executor.submit(() -> {
+                    final Session session = slingRepository.loginAdministrative(null);
+                    try {
+                        final UserManager userManager = AccessControlUtil.getUserManager(session);
+                        for (int index = first; index < users; index += threads) {
+                            final String userId = userId(index);
+                            change.apply(userManager, userId);
+                            // latency is measured from the start of the save
+                            commitTimes.put(userId, System.nanoTime());
+                            session.save();
+                        }
+                    } finally {
+                        session.logout();
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        final long committed = System.nanoTime();
+        with().
+            pollInterval(100, TimeUnit.MILLISECONDS).
+            then().
+            await().
+            alias(String.format("counting user presences %s", filter)).
+            atMost(Integer.getInteger(TIMEOUT), SECONDS).
+            until(() -> countUserPresences(filter) == expected);
+        final long converged = System.nanoTime();
+
+        final List<Long> latencies = new ArrayList<>();
+        for (int index = 0; index < presences; index++) {
+            final String userId = userId(index);
+            final Long eventTime = recorder.eventTimes.get(userId);
+            final Long commitTime = commitTimes.get(userId);
+            if (eventTime != null && commitTime != null) {
+                latencies.add(eventTime - commitTime);
+            }
+        }
+        Collections.sort(latencies);
+        final Map<String, Object> phase = new LinkedHashMap<>();
+        phase.put("commitMillis", millis(committed - start));
+        phase.put("convergenceMillis", millis(converged - start));
+        phase.put("serviceEvents", recorder.events.get());
+        phase.put("latencyCount", latencies.size());
+        phase.put("latencyP50Millis", millis(percentile(latencies, 0.5)));
+        phase.put("latencyP99Millis", millis(percentile(latencies, 0.99)));
+        phase.put("latencyMaxMillis", millis(percentile(latencies, 1)));
+        return phase;
+    }
+
+    // observer metrics from the metrics MBean service, cumulative over all phases
+    @NotNull
+    private Map<String, Object> observerMetrics() throws Exception {
+        final Map<String, Object> metrics = new LinkedHashMap<>();
+        final Collection<ServiceReference<DynamicMBean>> references = bundleContext.getServiceReferences(DynamicMBean.class, METRICS_FILTER);
+        if (references.isEmpty()) {
+            return metrics;
+        }
+        final ServiceReference<DynamicMBean> reference = references.iterator().next();
+        final DynamicMBean mbean = bundleContext.getService(reference);
+        try {
+            for (final String attribute : new String[]{"CommitCount", "ObservationTimeMean", "ObservationTime99thPercentile", "ObservationTimeMax", "PublishedLatency50thPercentile", "PublishedLatency99thPercentile", "RegisteredCount", "ModifiedCount", "UnregisteredCount", "OverflowCount"}) {
+                metrics.put(attribute, mbean.getAttribute(attribute));
+            }
+        } finally {
+            bundleContext.ungetService(reference);
+        }
+        return metrics;
+    }
+
+    @NotNull
+    private static String userId(final int index) {
+        return "load-user-" + index;
+    }
+
+    private static long percentile(@NotNull final List<Long> sorted, final double quantile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(quantile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static void writeResults(@NotNull final File file, @NotNull final Map<String, Object> results) throws IOException {
+        final File parent = file.getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writeJson(writer, results);
+            writer.write('\n');
+        }
+    }
+
+    // numbers and nested maps only, keys are plain names
+    private static void writeJson(@NotNull final Writer writer, final Object value) throws IOException {
+        if (value instanceof Map) {
+            writer.write('{');
+            boolean first = true;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writer.write('"' + String.valueOf(entry.getKey()) + "\":");
+                writeJson(writer, entry.getValue());
+            }
+            writer.write('}');
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writer.write(String.valueOf(value));
+        } else {
+            writer.write(value == null ? "null" : '"' + String.valueOf(value) + '"');
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence;
+
+import java.util.Collection;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Configuration;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerClass;
+import org.osgi.framework.ServiceReference;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.with;
+import static org.ops4j.pax.exam.CoreOptions.options;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.factoryConfiguration;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.newConfiguration;
+
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerClass.class)
+public class ServicePresenceIT extends JcrPresenceTestSupport {
+
+    private static final String FILTER = "(&(serviceName=org.apache.sling.jcr.presence)(subServiceName=presence-test)(userIds=service-presence-test))";
+
+    private static final String FOREIGN_FILTER = "(&(serviceName=org.apache.sling.foo)(subServiceName=bar)(userIds=service-presence-foreign))";
+
+    @Configuration
+    public Option[] configuration() {
+        return options(
+            baseConfiguration(),
+            factoryConfiguration("org.apache.sling.serviceusermapping.impl.ServiceUserMapperImpl.amended")
+                .put("user.mapping", new String[]{
+                    "org.apache.sling.jcr.presence:presence-test=service-presence-test",
+                    // a service of another bundle, not installed here
+                    "org.apache.sling.foo:bar=service-presence-foreign"
+                })
+                .asOption(),
+            newConfiguration("org.apache.sling.jcr.presence.internal.ServiceUserMappingPresenter")
+                .put("serviceNames", new String[]{"org.apache.sling.jcr.presence", "org.apache.sling.foo"})
+                .asOption()
+        );
+    }
+
+    @Test
+    public void testServicePresence() throws Exception {
+        // the mapping is resolved before its user exists
+        awaitServicePresences(FILTER, 0);
+        final Session session = slingRepository.loginAdministrative(null);
+        try {
+            final UserManager userManager = AccessControlUtil.getUserManager(session);
+            final User user = userManager.createSystemUser("service-presence-test", null);
+            session.save();
+            awaitServicePresences(FILTER, 1);
+
+            user.disable("testing");
+            session.save();
+            awaitServicePresences(FILTER, 0);
+
+            user.disable(null);
+            session.save();
+            awaitServicePresences(FILTER, 1);
+
+            user.remove();
+            session.save();
+            awaitServicePresences(FILTER, 0);
+
+            final User recreated = userManager.createSystemUser("service-presence-test", null);
+            session.save();
+            awaitServicePresences(FILTER, 1);
+
+            recreated.remove();
+            session.save();
+            awaitServicePresences(FILTER, 0);
+        } finally {
+            session.logout();
+        }
+    }
+
+    @Test
+    public void testForeignServicePresence() throws Exception {
+        awaitServicePresences(FOREIGN_FILTER, 0);
+        createSystemUser("service-presence-foreign", null);
+        awaitServicePresences(FOREIGN_FILTER, 1);
+        removeUser("service-presence-foreign");
+        awaitServicePresences(FOREIGN_FILTER, 0);
+    }
+
+    private void awaitServicePresences(@NotNull final String filter, final int count) {
+        with().
+            pollInterval(1, SECONDS).
+            then().
+            await().
+            alias(String.format("counting service presences %s", filter)).
+            atMost(10, SECONDS).
+            until(() -> countServicePresences(filter) == count);
+    }
+
+    private int countServicePresences(@NotNull final String filter) throws Exception {
+        final Collection<ServiceReference<ServicePresence>> serviceReferences = bundleContext.getServiceReferences(ServicePresence.class, filter);
+        return serviceReferences.size();
+    }
+
+}
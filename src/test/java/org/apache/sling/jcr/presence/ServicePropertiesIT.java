@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Configuration;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerClass;
+
+import static org.ops4j.pax.exam.CoreOptions.options;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.factoryConfiguration;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.newConfiguration;
+
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerClass.class)
+public class ServicePropertiesIT extends JcrPresenceTestSupport {
+
+    protected static final String FACTORY_PID = "org.apache.sling.jcr.presence.internal.UserPresenter";
+
+    @Configuration
+    public Option[] configuration() {
+        return options(
+            baseConfiguration(),
+            newConfiguration("org.apache.sling.jcr.presence.internal.UserPresenceObserver")
+                .put("serviceProperties", new String[]{
+                    "principalName=rep:principalName",
+                    "intermediatePath=:intermediatePath",
+                    "flagged=profile/flagged"
+                })
+                .asOption(),
+            factoryConfiguration(FACTORY_PID)
+                .put("userId", "properties-test")
+                .asOption()
+        );
+    }
+
+    @Test
+    public void testServiceProperties() throws Exception {
+        final Session session = slingRepository.loginAdministrative(null);
+        try {
+            final UserManager userManager = AccessControlUtil.getUserManager(session);
+            final User user = userManager.createSystemUser("properties-test", "system/properties");
+            session.save();
+            awaitUserPresences("(&(userId=properties-test)(principalName=properties-test)(intermediatePath=system/properties))", 1);
+            awaitUserPresences("(&(userId=properties-test)(flagged=*))", 0);
+
+            user.setProperty("profile/flagged", session.getValueFactory().createValue(true));
+            session.save();
+            awaitUserPresences("(&(userId=properties-test)(flagged=true))", 1);
+
+            user.removeProperty("profile/flagged");
+            session.save();
+            awaitUserPresences("(&(userId=properties-test)(flagged=*))", 0);
+            awaitUserPresences("(userId=properties-test)", 1);
+        } finally {
+            session.logout();
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Inject;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Configuration;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerClass;
+import org.osgi.framework.ServiceRegistration;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.with;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.ops4j.pax.exam.CoreOptions.options;
+import static org.ops4j.pax.exam.cm.ConfigurationAdminOptions.factoryConfiguration;
+
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerClass.class)
+public class UserPresenceRegistryIT extends JcrPresenceTestSupport {
+
+    protected static final String FACTORY_PID = "org.apache.sling.jcr.presence.internal.UserPresenter";
+
+    @Inject
+    protected UserPresenceRegistry userPresenceRegistry;
+
+    @Configuration
+    public Option[] configuration() {
+        return options(
+            baseConfiguration(),
+            factoryConfiguration(FACTORY_PID)
+                .put("userId", "registry-test")
+                .asOption()
+        );
+    }
+
+    @Test
+    public void testUserPresenceRegistry() throws Exception {
+        final Set<String> changedUserIds = ConcurrentHashMap.newKeySet();
+        final UserPresenceListener listener = changedUserIds::addAll;
+        final ServiceRegistration<UserPresenceListener> listenerRegistration = bundleContext.registerService(UserPresenceListener.class, listener, new Hashtable<>(Collections.singletonMap(UserPresenceListener.USER_IDS, "registry-test")));
+        try {
+            assertThat(userPresenceRegistry.isPresent("registry-test"), is(false));
+            assertThat(userPresenceRegistry.get("registry-test"), nullValue());
+
+            final CompletionStage<UserPresence> awaited = userPresenceRegistry.awaitPresence("registry-test", presence -> !presence.isDisabled(), Duration.ofSeconds(30));
+            assertThat(awaited.toCompletableFuture().isDone(), is(false));
+
+            createSystemUser("registry-test", null);
+            assertThat(awaited.toCompletableFuture().get(10, SECONDS).getUserId(), is("registry-test"));
+            awaitPresent("registry-test", true);
+            assertThat(userPresenceRegistry.get("registry-test").isSystemUser(), is(true));
+            awaitNotified(changedUserIds, "registry-test");
+
+            changedUserIds.clear();
+            disableUser("registry-test");
+            awaitPresent("registry-test", false);
+            assertThat(userPresenceRegistry.get("registry-test").isDisabled(), is(true));
+            awaitNotified(changedUserIds, "registry-test");
+
+            removeUser("registry-test");
+            with().
+                pollInterval(1, SECONDS).
+                then().
+                await().
+                alias("looking up user presence (removed)").
+                atMost(10, SECONDS).
+                until(() -> userPresenceRegistry.get("registry-test") == null);
+        } finally {
+            listenerRegistration.unregister();
+        }
+    }
+
+    @Test
+    public void testAwaitPresenceTimeout() throws Exception {
+        final CompletionStage<UserPresence> awaited = userPresenceRegistry.awaitPresence("registry-missing", presence -> true, Duration.ofMillis(100));
+        try {
+            awaited.toCompletableFuture().get(10, SECONDS);
+            fail("awaiting a missing user presence should time out");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(TimeoutException.class));
+        }
+    }
+
+    private void awaitPresent(@NotNull final String userId, final boolean present) {
+        with().
+            pollInterval(1, SECONDS).
+            then().
+            await().
+            alias(String.format("looking up user presence %s", userId)).
+            atMost(10, SECONDS).
+            until(() -> userPresenceRegistry.isPresent(userId) == present && userPresenceRegistry.get(userId) != null);
+    }
+
+    private void awaitNotified(@NotNull final Set<String> changedUserIds, @NotNull final String userId) {
+        with().
+            pollInterval(100, MILLISECONDS).
+            then().
+            await().
+            alias(String.format("notifying user presence listener %s", userId)).
+            atMost(10, SECONDS).
+            until(() -> changedUserIds.contains(userId));
+    }
+
+    private void disableUser(@NotNull final String userId) throws Exception {
+        final Session session = slingRepository.loginAdministrative(null);
+        final Authorizable authorizable = AccessControlUtil.getUserManager(session).getAuthorizable(userId);
+        final User user = (User) authorizable;
+        user.disable("no reason");
+        session.save();
+        session.logout();
+    }
+
+}
@@ -132,14 +132,6 @@ public class UserPresenterIT extends JcrPresenceTestSupport {
         session.logout();
     }
 
-    private void removeUser(@NotNull final String userId) throws Exception {
-        final Session session = slingRepository.loginAdministrative(null);
-        final Authorizable authorizable = AccessControlUtil.getUserManager(session).getAuthorizable(userId);
-        authorizable.remove();
-        session.save();
-        session.logout();
-    }
-
     private boolean isUserPresent(final String userId) throws Exception {
         Session session = null;
         try {
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.NT_REP_AUTHORIZABLE_FOLDER;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.NT_REP_SYSTEM_USER;
+import static org.apache.jackrabbit.oak.spi.security.user.UserConstants.REP_AUTHORIZABLE_ID;
+import static org.junit.Assert.assertEquals;
+
+public class AuthorizableDiffTest {
+
+    private static final String USERS_PATH = "/home/users";
+
+    private static final Set<String> EXCLUDED = Collections.singleton("profile");
+
+    private final List<String> changed = new ArrayList<>();
+
+    @Test
+    public void testAuthorizableWithExcludedName() {
+        final NodeState before = EMPTY_NODE;
+        final NodeBuilder builder = before.builder();
+        user(folder(users(builder), "system"), "profile");
+
+        compare(before, builder.getNodeState());
+        assertEquals(Collections.singletonList(USERS_PATH + "/system/profile"), changed);
+    }
+
+    @Test
+    public void testExcludedFolder() {
+        final NodeState before = EMPTY_NODE;
+        final NodeBuilder builder = before.builder();
+        user(folder(users(builder), "profile"), "user-a");
+        user(folder(users(builder), "system"), "user-b");
+
+        compare(before, builder.getNodeState());
+        assertEquals(Collections.singletonList(USERS_PATH + "/system/user-b"), changed);
+    }
+
+    @Test
+    public void testNoDescentBelowAuthorizables() {
+        final NodeBuilder initial = EMPTY_NODE.builder();
+        user(folder(users(initial), "system"), "user-a");
+        final NodeState before = initial.getNodeState();
+        final NodeBuilder builder = before.builder();
+        final NodeBuilder user = users(builder).getChildNode("system").getChildNode("user-a");
+        user.child(".tokens").child("token-a").setProperty("rep:token.key", "a");
+        user.child("profile").setProperty("name", "a");
+
+        compare(before, builder.getNodeState());
+        assertEquals(Collections.singletonList(USERS_PATH + "/system/user-a"), changed);
+    }
+
+    @Test
+    public void testBudget() {
+        final NodeState before = EMPTY_NODE;
+        final NodeBuilder builder = before.builder();
+        final NodeBuilder folder = folder(users(builder), "system");
+        for (int i = 0; i < 10; i++) {
+            user(folder, "user-" + i);
+        }
+
+        final NodeState after = builder.getNodeState();
+        assertEquals(-1, AuthorizableDiff.compare(USERS_PATH, node(before), node(after), EXCLUDED, this::authorizableChanged, 5));
+        assertEquals(0, AuthorizableDiff.compare(USERS_PATH, node(before), node(after), EXCLUDED, this::authorizableChanged, 12));
+    }
+
+    private void compare(final NodeState before, final NodeState after) {
+        AuthorizableDiff.compare(USERS_PATH, node(before), node(after), EXCLUDED, this::authorizableChanged);
+    }
+
+    private void authorizableChanged(final String path, final NodeState before, final NodeState after) {
+        changed.add(path);
+    }
+
+    private static NodeState node(final NodeState root) {
+        return root.getChildNode("home").getChildNode("users");
+    }
+
+    private static NodeBuilder users(final NodeBuilder root) {
+        return folder(folder(root, "home"), "users");
+    }
+
+    private static NodeBuilder folder(final NodeBuilder parent, final String name) {
+        final NodeBuilder folder = parent.child(name);
+        folder.setProperty(JCR_PRIMARYTYPE, NT_REP_AUTHORIZABLE_FOLDER, Type.NAME);
+        return folder;
+    }
+
+    private static void user(final NodeBuilder parent, final String userId) {
+        final NodeBuilder user = parent.child(userId);
+        user.setProperty(JCR_PRIMARYTYPE, NT_REP_SYSTEM_USER, Type.NAME);
+        user.setProperty(REP_AUTHORIZABLE_ID, userId);
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.commons.metrics.MetricsService;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PresenceRegistrationTest {
+
+    private static final String USER_ID = "presence-registration-test";
+
+    private static final int THREADS = 8;
+
+    private static final int UPDATES = 10000;
+
+    private final AtomicInteger registered = new AtomicInteger();
+
+    private final AtomicInteger violations = new AtomicInteger();
+
+    private PresenceRegistry registry;
+
+    private PresenceMetrics metrics;
+
+    @Before
+    public void setUp() {
+        registry = new PresenceRegistry();
+        metrics = new PresenceMetrics(() -> MetricsService.NOOP);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final PresenceRegistration registration = new PresenceRegistration(bundleContext(), USER_ID, registry, metrics);
+        run(registration, null);
+
+        // a final update is applied on top of whatever the concurrent updates left
+        registration.update(new UserInfo(USER_ID, "/home/users/system/test", true, true));
+        assertEquals(PresenceRegistration.State.DISABLED, registration.getState());
+        assertEquals(1, registered.get());
+        registry.flush();
+        assertTrue(registry.get(USER_ID).isDisabled());
+
+        registration.update(null);
+        assertEquals(PresenceRegistration.State.ABSENT, registration.getState());
+        assertEquals(0, registered.get());
+        assertEquals(0, violations.get());
+        assertEquals(metrics.getRegisteredCount(), metrics.getUnregisteredCount());
+    }
+
+    @Test
+    public void testConcurrentUpdatesAndClose() throws Exception {
+        final PresenceRegistration registration = new PresenceRegistration(bundleContext(), USER_ID, registry, metrics);
+        run(registration, registration::close);
+
+        assertEquals(PresenceRegistration.State.CLOSED, registration.getState());
+        assertEquals(0, registered.get());
+        assertEquals(0, violations.get());
+        assertEquals(metrics.getRegisteredCount(), metrics.getUnregisteredCount());
+        registry.flush();
+        assertNull(registry.get(USER_ID));
+
+        // closed for good
+        assertFalse(registration.update(new UserInfo(USER_ID, "/home/users/system/test", false, true)));
+        assertEquals(PresenceRegistration.State.CLOSED, registration.getState());
+        assertEquals(0, registered.get());
+    }
+
+    // updates from several threads, running the given action halfway
+    private void run(final PresenceRegistration registration, final Runnable action) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch halfway = new CountDownLatch(THREADS);
+        final List<Thread> threads = new ArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < THREADS; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int update = 0; update < UPDATES; update++) {
+                        if (update == UPDATES / 2) {
+                            halfway.countDown();
+                        }
+                        registration.update(randomUserInfo());
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        if (action != null) {
+            halfway.await();
+            action.run();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    private static UserInfo randomUserInfo() {
+        switch (ThreadLocalRandom.current().nextInt(3)) {
+            case 0:
+                return null;
+            case 1:
+                return new UserInfo(USER_ID, "/home/users/system/test", true, true);
+            default:
+                return new UserInfo(USER_ID, "/home/users/system/test", false, true);
+        }
+    }
+
+    // a bundle context counting registered services and failing on misuse of registrations
+    private BundleContext bundleContext() {
+        return (BundleContext) Proxy.newProxyInstance(BundleContext.class.getClassLoader(), new Class<?>[]{BundleContext.class}, (proxy, method, args) -> {
+            if (method.getName().equals("registerService")) {
+                if (registered.incrementAndGet() > 1) {
+                    violations.incrementAndGet();
+                }
+                return registration();
+            }
+            return null;
+        });
+    }
+
+    private ServiceRegistration<?> registration() {
+        final AtomicBoolean unregistered = new AtomicBoolean();
+        return (ServiceRegistration<?>) Proxy.newProxyInstance(ServiceRegistration.class.getClassLoader(), new Class<?>[]{ServiceRegistration.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "unregister":
+                    if (unregistered.getAndSet(true)) {
+                        violations.incrementAndGet();
+                        throw new IllegalStateException("already unregistered");
+                    }
+                    registered.decrementAndGet();
+                    return null;
+                case "setProperties":
+                    if (unregistered.get()) {
+                        violations.incrementAndGet();
+                        throw new IllegalStateException("already unregistered");
+                    }
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PresenceSnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final char[] large = new char[70000];
+        Arrays.fill(large, 'ä');
+        final Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("string", "value");
+        properties.put("long", 42L);
+        properties.put("boolean", true);
+        properties.put("double", 0.5);
+        properties.put("list", Arrays.asList("a", 1L));
+        properties.put("large", new String(large));
+        final UserInfo userInfo = new UserInfo("user-a", "/home/users/system/a", true, true, new HashSet<>(Arrays.asList("group-a", "group-b")), properties);
+        final UserInfo plain = new UserInfo("user-b", "/home/users/b", false, false);
+
+        final PresenceSnapshotFile snapshotFile = new PresenceSnapshotFile(temporaryFolder.newFile("presences.snapshot"));
+        snapshotFile.save(Arrays.asList(userInfo, plain));
+        final List<UserInfo> loaded = snapshotFile.load();
+
+        assertEquals(Arrays.asList(userInfo, plain), loaded);
+        assertEquals(userInfo.path, loaded.get(0).path);
+        assertEquals(plain.path, loaded.get(1).path);
+        assertEquals(properties, loaded.get(0).properties);
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        final PresenceSnapshotFile snapshotFile = new PresenceSnapshotFile(new File(temporaryFolder.getRoot(), "missing.snapshot"));
+        assertTrue(snapshotFile.load().isEmpty());
+        snapshotFile.save(Collections.emptyList());
+        assertTrue(snapshotFile.load().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownFormat() throws Exception {
+        final File file = temporaryFolder.newFile("unknown.snapshot");
+        Files.write(file.toPath(), new byte[]{'S', 'J', 'P', '3', 0, 0, 0, 0});
+        new PresenceSnapshotFile(file).load();
+    }
+
+}
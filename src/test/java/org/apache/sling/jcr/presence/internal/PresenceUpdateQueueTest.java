@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.commons.metrics.MetricsService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PresenceUpdateQueueTest {
+
+    private static final long QUIET_WINDOW = 200;
+
+    private static final long MAX_DELAY = 600;
+
+    private final BlockingQueue<List<PresenceUpdate>> batches = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger discarded = new AtomicInteger();
+
+    private PresenceMetrics metrics;
+
+    private PresenceUpdateQueue queue;
+
+    @Before
+    public void setUp() {
+        metrics = new PresenceMetrics(() -> MetricsService.NOOP);
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testQuietWindow() throws Exception {
+        queue = queue(16, PresenceUpdateQueue.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(PresenceUpdate.present(userInfo("user-a", i % 2 == 0), 0));
+        }
+        queue.offer(PresenceUpdate.present(userInfo("user-a", true), 0));
+
+        // the burst is processed once with its final state
+        final List<PresenceUpdate> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(1, batch.size());
+        assertTrue(batch.get(0).userInfo.isDisabled);
+        assertEquals(10, metrics.getQueueMergedCount());
+        assertNull(batches.poll(2 * QUIET_WINDOW, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testMaxDelay() throws Exception {
+        queue = queue(16, PresenceUpdateQueue.OverflowPolicy.BLOCK);
+        final long start = System.nanoTime();
+        List<PresenceUpdate> batch = null;
+        // updates arriving faster than the quiet window never let the update become quiet
+        while (batch == null && System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(5 * MAX_DELAY)) {
+            queue.offer(PresenceUpdate.present(userInfo("user-a", false), 0));
+            batch = batches.poll(QUIET_WINDOW / 4, TimeUnit.MILLISECONDS);
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertNotNull(batch);
+        assertEquals(1, batch.size());
+        assertTrue(String.format("flushed after %d ms", elapsed), elapsed >= MAX_DELAY && elapsed < 3 * MAX_DELAY);
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        queue = queue(1, PresenceUpdateQueue.OverflowPolicy.DISCARD);
+        queue.offer(PresenceUpdate.present(userInfo("user-a", false), 0));
+        queue.offer(PresenceUpdate.present(userInfo("user-b", false), 0));
+
+        assertEquals(1, discarded.get());
+        assertEquals(1, metrics.getQueueDiscardedCount());
+        final List<PresenceUpdate> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(1, batch.size());
+        assertEquals("user-a", batch.get(0).userId);
+    }
+
+    // batches are copied, the queue reuses its list
+    private PresenceUpdateQueue queue(final int capacity, final PresenceUpdateQueue.OverflowPolicy overflowPolicy) {
+        return new PresenceUpdateQueue(capacity, overflowPolicy, QUIET_WINDOW, MAX_DELAY, TimeUnit.MILLISECONDS, metrics, updates -> batches.add(new ArrayList<>(updates)), discarded::incrementAndGet);
+    }
+
+    private static UserInfo userInfo(final String userId, final boolean disabled) {
+        return new UserInfo(userId, "/home/users/system/" + userId, disabled, true);
+    }
+
+}
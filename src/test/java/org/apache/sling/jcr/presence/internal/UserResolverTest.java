@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.presence.internal;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.InvalidItemStateException;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UserResolverTest {
+
+    private static final int USERS = 100;
+
+    private final PresenceMetrics metrics = new PresenceMetrics(() -> MetricsService.NOOP);
+
+    private final AtomicInteger logins = new AtomicInteger();
+
+    private final AtomicInteger logouts = new AtomicInteger();
+
+    private final AtomicInteger refreshes = new AtomicInteger();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    private final AtomicBoolean failRefresh = new AtomicBoolean();
+
+    // threads having looked up users
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    private UserResolver userResolver;
+
+    @After
+    public void tearDown() {
+        if (userResolver != null) {
+            userResolver.close();
+        }
+    }
+
+    @Test
+    public void testParallelBatches() throws Exception {
+        userResolver = new UserResolver(repository(), PresenceProperties.NONE, metrics, 4, 10, false);
+        final Map<String, UserInfo> userInfos = userResolver.getUsersById(userIds());
+
+        // every other user exists
+        assertEquals(USERS / 2, userInfos.size());
+        for (final UserInfo userInfo : userInfos.values()) {
+            assertTrue(isPresent(userInfo.userId));
+            assertEquals("/home/users/system/" + userInfo.userId, userInfo.path);
+        }
+        assertEquals(USERS, metrics.getLookupCount());
+        assertTrue(maxActive.get() > 1);
+        assertTrue(maxActive.get() <= 4);
+        assertEquals(maxActive.get(), logins.get());
+        for (final Thread thread : threads) {
+            assertTrue(thread.getName().startsWith("sling-jcr-presence-resolver-"));
+            assertTrue(thread.isDaemon());
+        }
+    }
+
+    @Test
+    public void testSingleBatchOnCallingThread() throws Exception {
+        userResolver = new UserResolver(repository(), PresenceProperties.NONE, metrics, 4, USERS, false);
+        assertEquals(USERS / 2, userResolver.getUsersById(userIds()).size());
+        assertEquals(Collections.singleton(Thread.currentThread()), threads);
+        assertEquals(1, logins.get());
+    }
+
+    @Test
+    public void testSessionReuse() throws Exception {
+        userResolver = new UserResolver(repository(), PresenceProperties.NONE, metrics, 1, 10, false);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(USERS / 2, userResolver.getUsersById(userIds()).size());
+        }
+        assertEquals(1, logins.get());
+        assertEquals(2, refreshes.get());
+        assertEquals(0, logouts.get());
+
+        userResolver.close();
+        assertEquals(1, logouts.get());
+    }
+
+    @Test
+    public void testRefreshFailure() throws Exception {
+        userResolver = new UserResolver(repository(), PresenceProperties.NONE, metrics, 1, 10, false);
+        userResolver.getUsersById(userIds());
+        failRefresh.set(true);
+
+        // the stale session is logged out and replaced
+        assertEquals(USERS / 2, userResolver.getUsersById(userIds()).size());
+        assertEquals(2, logins.get());
+        assertEquals(1, logouts.get());
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        // virtual threads if available, a pool of platform threads otherwise
+        userResolver = new UserResolver(repository(), PresenceProperties.NONE, metrics, 4, 10, true);
+        assertEquals(USERS / 2, userResolver.getUsersById(userIds()).size());
+        assertTrue(maxActive.get() <= 4);
+        for (final Thread thread : threads) {
+            assertTrue(thread.getName().startsWith("sling-jcr-presence-resolver-"));
+        }
+    }
+
+    private static List<String> userIds() {
+        final List<String> userIds = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            userIds.add("user-" + i);
+        }
+        return userIds;
+    }
+
+    private static boolean isPresent(final String userId) {
+        return Integer.parseInt(userId.substring("user-".length())) % 2 == 0;
+    }
+
+    private SlingRepository repository() {
+        return (SlingRepository) Proxy.newProxyInstance(SlingRepository.class.getClassLoader(), new Class<?>[]{SlingRepository.class}, (proxy, method, args) -> {
+            if (method.getName().equals("loginAdministrative")) {
+                logins.incrementAndGet();
+                return session();
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private JackrabbitSession session() {
+        final AtomicBoolean live = new AtomicBoolean(true);
+        final UserManager userManager = userManager();
+        return (JackrabbitSession) Proxy.newProxyInstance(JackrabbitSession.class.getClassLoader(), new Class<?>[]{JackrabbitSession.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUserManager":
+                    return userManager;
+                case "isLive":
+                    return live.get();
+                case "refresh":
+                    refreshes.incrementAndGet();
+                    if (failRefresh.get()) {
+                        throw new InvalidItemStateException("stale");
+                    }
+                    return null;
+                case "logout":
+                    if (live.getAndSet(false)) {
+                        logouts.incrementAndGet();
+                    }
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    // counts sessions looking up users concurrently
+    private UserManager userManager() {
+        return (UserManager) Proxy.newProxyInstance(UserManager.class.getClassLoader(), new Class<?>[]{UserManager.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("getAuthorizable") || args.length != 1) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            threads.add(Thread.currentThread());
+            final int current = active.incrementAndGet();
+            maxActive.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(1);
+                final String userId = (String) args[0];
+                return isPresent(userId) ? user(userId) : null;
+            } finally {
+                active.decrementAndGet();
+            }
+        });
+    }
+
+    private static User user(final String userId) {
+        return (User) Proxy.newProxyInstance(User.class.getClassLoader(), new Class<?>[]{User.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getID":
+                    return userId;
+                case "getPath":
+                    return "/home/users/system/" + userId;
+                case "isGroup":
+                case "isDisabled":
+                    return false;
+                case "isSystemUser":
+                    return true;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+}